@@ -0,0 +1,45 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Participants and a coordinator running in the benchmark JVM on free local
+ * ports, with their logs in a temporary directory that is deleted on close.
+ */
+final class InProcessParticipants implements Closeable {
+
+    private final Path dir;
+    private final List<ServerMain> servers = new ArrayList<>();
+    final Coordinator coordinator;
+
+    InProcessParticipants(int count) throws IOException {
+        this.dir = Files.createTempDirectory("pob-bench");
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            ServerMain server = ServerMain.open(0, dir.resolve("participant-" + i)).serveInBackground();
+            servers.add(server);
+            ports[i] = server.getPort();
+        }
+        this.coordinator = new Coordinator(ports, dir.resolve("coordinator"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        coordinator.shutdown();
+        for (ServerMain server : servers) {
+            server.close();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
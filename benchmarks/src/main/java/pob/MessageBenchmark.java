@@ -0,0 +1,92 @@
+package pob;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wire format and status encoding, the per-message work on both sides of a
+ * connection.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBenchmark {
+
+    @Param({"16", "256"})
+    public int batchSize;
+
+    private final long txId = TransactionIds.next();
+    private String prepareLine;
+    private String batchLine;
+    private Path logDir;
+    private ParticipantLog log;
+    private ParticipantEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        prepareLine = Message.of(MessageType.PREPARE, txId, 42, 95).encode();
+        StringBuilder entries = new StringBuilder();
+        for (int i = 0; i < batchSize; i++) {
+            if (i > 0) {
+                entries.append(Message.ENTRY_SEPARATOR);
+            }
+            entries.append(txId + i).append(Message.FIELD_SEPARATOR).append(i)
+                .append(Message.FIELD_SEPARATOR).append(95);
+        }
+        batchLine = Message.of(MessageType.PREPARE_BATCH, txId, entries).encode();
+
+        logDir = Files.createTempDirectory("pob-bench-status");
+        log = new ParticipantLog(logDir);
+        engine = new ParticipantEngine(0, log, new ParticipantMetrics(new Metrics("type=Benchmark")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        try (var files = Files.list(logDir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(logDir);
+    }
+
+    @Benchmark
+    public Message parsePrepare() {
+        return Message.parse(prepareLine);
+    }
+
+    @Benchmark
+    public String encodePrepare() {
+        return Message.of(MessageType.PREPARE, txId, 42, 95).encode();
+    }
+
+    @Benchmark
+    public String[][] parseBatch() {
+        return Message.parse(batchLine).entries(0);
+    }
+
+    @Benchmark
+    public String statusPayload() {
+        return engine.buildStatusPayload();
+    }
+}
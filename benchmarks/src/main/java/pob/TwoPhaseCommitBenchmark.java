@@ -0,0 +1,118 @@
+package pob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end 2PC rounds against in-process participants over loopback TCP,
+ * including the forced writes of the participant and decision logs.
+ * <p>
+ * {@code concurrency} is the number of rounds in flight: {@link #throughput}
+ * keeps that many rounds open from one thread, and {@link #latency} samples
+ * single rounds while {@code concurrency - 1} other rounds run in the background.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class TwoPhaseCommitBenchmark {
+
+    @Param({"3", "6"})
+    public int participants;
+
+    // Below 100 a share of the rounds is aborted by participants voting NO
+    @Param({"100", "95"})
+    public int successPerc;
+
+    @Param({"1", "16", "64"})
+    public int concurrency;
+
+    private InProcessParticipants cluster;
+    private Semaphore inFlight;
+    private final AtomicInteger values = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        cluster = new InProcessParticipants(participants);
+        inFlight = new Semaphore(concurrency);
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        inFlight.acquire(concurrency);
+        inFlight.release(concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        cluster.close();
+    }
+
+    // A new value every round, so participants never vote READ_ONLY
+    int nextValue() {
+        return values.incrementAndGet();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput() throws InterruptedException {
+        inFlight.acquire();
+        cluster.coordinator.startTwoPhaseCommitAsync(nextValue(), successPerc)
+            .whenComplete((outcome, e) -> inFlight.release());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean latency(BackgroundLoad load) {
+        return cluster.coordinator.startTwoPhaseCommit(nextValue(), successPerc);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BackgroundLoad {
+
+        private volatile boolean running;
+        private final List<Thread> loaders = new ArrayList<>();
+
+        @Setup(Level.Iteration)
+        public void start(TwoPhaseCommitBenchmark benchmark) {
+            running = true;
+            for (int i = 1; i < benchmark.concurrency; i++) {
+                loaders.add(Thread.ofVirtual().start(() -> {
+                    while (running) {
+                        benchmark.cluster.coordinator.startTwoPhaseCommit(benchmark.nextValue(),
+                                                                          benchmark.successPerc);
+                    }
+                }));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() throws InterruptedException {
+            running = false;
+            for (Thread loader : loaders) {
+                loader.join();
+            }
+            loaders.clear();
+        }
+    }
+}
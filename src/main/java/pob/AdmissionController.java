@@ -0,0 +1,248 @@
+package pob;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the transactions a coordinator runs at once, in total and on each
+ * participant, so that under overload the excess is turned away instead of
+ * queueing in front of the participants until every round runs into its
+ * deadline. A submission over a limit fails at once with a
+ * {@link RejectedExecutionException}, or, with {@code queueMs} above zero,
+ * waits its turn in FIFO order for at most that long.
+ * <p>
+ * With {@code adaptive} set the total limit follows the round latency (AIMD).
+ * Single rounds vary too much to judge by, so their latency is smoothed, and
+ * the lowest smoothed latency of the recent rounds is the baseline. While the
+ * smoothed latency stays within {@link #TOLERANCE} times the baseline and the
+ * limit is in use, it grows by one per limit's worth of rounds; above that it
+ * shrinks by a tenth, at most once per round. {@code maxInFlight} then only
+ * caps it.
+ */
+final class AdmissionController {
+
+    static final String MAX_IN_FLIGHT_PROPERTY = "pob.maxInFlight";
+    static final String MAX_PER_PARTICIPANT_PROPERTY = "pob.maxInFlightPerParticipant";
+    static final String QUEUE_PROPERTY = "pob.admissionQueueMs";
+    static final String ADAPTIVE_PROPERTY = "pob.adaptiveLimit";
+
+    private static final int MIN_LIMIT = 4;
+    private static final int INITIAL_ADAPTIVE_LIMIT = 32;
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    private static final double SMOOTHING = 0.05;
+    // Rounds after which the lowest latency is measured afresh, so the limit can follow a slower cluster
+    private static final int LATENCY_WINDOW = 1000;
+
+    private static final class Waiter {
+
+        final Collection<InetSocketAddress> participants;
+        final Supplier<CompletableFuture<Outcome>> round;
+        final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        ScheduledFuture<?> expiry;
+
+        Waiter(Collection<InetSocketAddress> participants, Supplier<CompletableFuture<Outcome>> round) {
+            this.participants = participants;
+            this.round = round;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxPerParticipant;
+    private final long queueNanos;
+    private final boolean adaptive;
+    private final ScheduledExecutorService scheduler;
+    private final CoordinatorMetrics metrics;
+
+    // All guarded by this
+    private final Map<InetSocketAddress, Integer> perParticipant = new HashMap<>();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private double smoothedLatency;
+    private double baselineLatency = Double.MAX_VALUE;
+    private double windowBaselineLatency = Double.MAX_VALUE;
+    private int windowRounds;
+    private long lastDecrease = System.nanoTime();
+    private boolean closed;
+
+    AdmissionController(int maxInFlight, int maxPerParticipant, long queueMs, boolean adaptive,
+                        ScheduledExecutorService scheduler, CoordinatorMetrics metrics) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxPerParticipant = Math.max(1, maxPerParticipant);
+        this.queueNanos = TimeUnit.MILLISECONDS.toNanos(queueMs);
+        this.adaptive = adaptive;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.limit = adaptive ? Math.min(this.maxInFlight, Math.max(MIN_LIMIT, INITIAL_ADAPTIVE_LIMIT))
+            : this.maxInFlight;
+    }
+
+    static AdmissionController fromConfig(ScheduledExecutorService scheduler, CoordinatorMetrics metrics) {
+        return new AdmissionController(Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 1024),
+                                       Integer.getInteger(MAX_PER_PARTICIPANT_PROPERTY, 512),
+                                       Long.getLong(QUEUE_PROPERTY, 0),
+                                       Boolean.getBoolean(ADAPTIVE_PROPERTY),
+                                       scheduler, metrics);
+    }
+
+    /**
+     * Starts {@code round} once a transaction on {@code participants} is
+     * within the limits. The returned future completes with the round's
+     * outcome, or fails if the transaction was not admitted.
+     */
+    CompletableFuture<Outcome> admit(Collection<InetSocketAddress> participants,
+                                     Supplier<CompletableFuture<Outcome>> round) {
+        Waiter waiter = new Waiter(participants, round);
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Coordinator is shut down"));
+            }
+            // Nobody overtakes a waiter, so a transaction on a busy participant is not starved
+            if (queue.isEmpty() && fits(participants)) {
+                acquire(participants);
+            } else if (queueNanos > 0 && queue.size() < maxInFlight) {
+                queue.add(waiter);
+                waiter.expiry = scheduler.schedule(() -> expire(waiter), queueNanos, TimeUnit.NANOSECONDS);
+                return waiter.outcome;
+            } else {
+                metrics.rejected.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "Coordinator overloaded: " + inFlight + " transaction(s) in flight, limit " + (int) limit
+                        + ", " + maxPerParticipant + " per participant"));
+            }
+        }
+        run(waiter);
+        return waiter.outcome;
+    }
+
+    private void run(Waiter waiter) {
+        long start = System.nanoTime();
+        CompletableFuture<Outcome> round;
+        try {
+            round = waiter.round.get();
+        } catch (RuntimeException e) {
+            round = CompletableFuture.failedFuture(e);
+        }
+        round.whenComplete((outcome, error) -> {
+            // A failed round says nothing about latency, it may not even have reached a participant
+            release(waiter.participants, error == null ? System.nanoTime() - start : -1);
+            if (error != null) {
+                waiter.outcome.completeExceptionally(error);
+            } else {
+                waiter.outcome.complete(outcome);
+            }
+        });
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            if (!queue.remove(waiter)) {
+                return;
+            }
+        }
+        metrics.expired.increment();
+        waiter.outcome.completeExceptionally(new RejectedExecutionException(
+            "Transaction not admitted within " + TimeUnit.NANOSECONDS.toMillis(queueNanos) + " ms"));
+    }
+
+    private void release(Collection<InetSocketAddress> participants, long latencyNanos) {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            for (InetSocketAddress participant : participants) {
+                perParticipant.computeIfPresent(participant, (p, n) -> n == 1 ? null : n - 1);
+            }
+            if (adaptive && latencyNanos >= 0) {
+                adapt(latencyNanos);
+            }
+            while (!queue.isEmpty() && fits(queue.peek().participants)) {
+                Waiter next = queue.poll();
+                next.expiry.cancel(false);
+                acquire(next.participants);
+                granted.add(next);
+            }
+        }
+        for (Waiter waiter : granted) {
+            metrics.admissionWait.record(System.nanoTime() - waiter.queuedAt);
+            // Not on this thread, a round that fails at once would release and grant recursively
+            Thread.ofVirtual().start(() -> run(waiter));
+        }
+    }
+
+    private boolean fits(Collection<InetSocketAddress> participants) {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        for (InetSocketAddress participant : participants) {
+            if (perParticipant.getOrDefault(participant, 0) >= maxPerParticipant) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquire(Collection<InetSocketAddress> participants) {
+        inFlight++;
+        for (InetSocketAddress participant : participants) {
+            perParticipant.merge(participant, 1, Integer::sum);
+        }
+    }
+
+    private void adapt(long latencyNanos) {
+        smoothedLatency = smoothedLatency == 0 ? latencyNanos
+            : smoothedLatency + (latencyNanos - smoothedLatency) * SMOOTHING;
+        windowBaselineLatency = Math.min(windowBaselineLatency, smoothedLatency);
+        if (++windowRounds == LATENCY_WINDOW) {
+            baselineLatency = windowBaselineLatency;
+            windowBaselineLatency = Double.MAX_VALUE;
+            windowRounds = 0;
+        } else {
+            baselineLatency = Math.min(baselineLatency, smoothedLatency);
+        }
+        long now = System.nanoTime();
+        if (smoothedLatency > baselineLatency * TOLERANCE) {
+            // The rounds running alongside waited in the same queues, one cut covers them
+            if (now - lastDecrease > smoothedLatency) {
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (inFlight + 1 >= limit / 2) {
+            limit = Math.min(maxInFlight, limit + 1 / limit);
+        }
+    }
+
+    synchronized long limit() {
+        return (long) limit;
+    }
+
+    synchronized long queued() {
+        return queue.size();
+    }
+
+    // Waiting submissions fail; admitted rounds run to the end
+    void close() {
+        List<Waiter> waiting;
+        synchronized (this) {
+            closed = true;
+            waiting = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Waiter waiter : waiting) {
+            waiter.expiry.cancel(false);
+            waiter.outcome.completeExceptionally(new RejectedExecutionException("Coordinator is shut down"));
+        }
+    }
+}
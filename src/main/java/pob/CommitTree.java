@@ -0,0 +1,65 @@
+package pob;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of hierarchical 2PC. The participants are split into at most
+ * {@code fanout} contiguous groups; the first member of each group is the
+ * subtree root that the coordinator talks to, and the rest are its
+ * descendants, which it splits the same way for its own children. Every node
+ * therefore has at most {@code fanout} connections, however many participants
+ * there are, and the tree is about log<sub>fanout</sub>(n) levels deep.
+ * <p>
+ * A subtree root gets a PREPARE with the layout appended,
+ * {@code V2:PREPARE:<txId>:<value>:<successPerc>:<fanout>:<timeoutMs>:<host>,<port>;...},
+ * a leaf gets the plain two-argument PREPARE.
+ */
+final class CommitTree {
+
+    static final String FANOUT_PROPERTY = "pob.treeFanout";
+
+    record Subtree(InetSocketAddress root, List<InetSocketAddress> descendants) {
+    }
+
+    private CommitTree() {
+    }
+
+    // Groups differ in size by at most one, so the tree stays balanced
+    static List<Subtree> split(List<InetSocketAddress> members, int fanout) {
+        int groups = Math.min(fanout, members.size());
+        List<Subtree> subtrees = new ArrayList<>(groups);
+        int from = 0;
+        for (int g = 0; g < groups; g++) {
+            int to = from + (members.size() - from) / (groups - g);
+            subtrees.add(new Subtree(members.get(from), List.copyOf(members.subList(from + 1, to))));
+            from = to;
+        }
+        return subtrees;
+    }
+
+    // value is the wire form of the writes, see Writes
+    static Message prepare(long txId, String value, int successPerc, int fanout, long timeoutMs,
+                           List<InetSocketAddress> descendants) {
+        if (descendants.isEmpty()) {
+            return Message.of(MessageType.PREPARE, txId, value, successPerc);
+        }
+        StringBuilder layout = new StringBuilder();
+        for (InetSocketAddress member : descendants) {
+            if (!layout.isEmpty()) {
+                layout.append(Message.ENTRY_SEPARATOR);
+            }
+            layout.append(member.getHostString()).append(Message.FIELD_SEPARATOR).append(member.getPort());
+        }
+        return Message.of(MessageType.PREPARE, txId, value, successPerc, fanout, timeoutMs, layout);
+    }
+
+    static List<InetSocketAddress> descendants(Message prepare) {
+        List<InetSocketAddress> descendants = new ArrayList<>();
+        for (String[] member : prepare.entries(4)) {
+            descendants.add(new InetSocketAddress(member[0], Integer.parseInt(member[1])));
+        }
+        return descendants;
+    }
+}
@@ -0,0 +1,176 @@
+package pob;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small set of warm, multiplexed connections to one participant. Requests are
+ * spread round-robin over the open connections; dead connections are replaced
+ * lazily on use and by the periodic {@link #healthCheck()} with exponential
+ * backoff between reconnect attempts.
+ */
+class ConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long IDLE_PING_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final InetSocketAddress address;
+    private final AtomicReferenceArray<ParticipantConnection> connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long requestTimeoutMs;
+    private final CoordinatorMetrics.Participant metrics;
+    private final ParticipantConnection.RequestHandler requests;
+
+    private long backoffMs = MIN_BACKOFF_MS;
+    private long nextConnectAttemptMs = 0;
+    private volatile boolean closed = false;
+
+    // Requests from the participant are left unanswered
+    ConnectionPool(InetSocketAddress address, int size, long requestTimeoutMs, CoordinatorMetrics.Participant metrics) {
+        this(address, size, requestTimeoutMs, metrics, request -> null);
+    }
+
+    ConnectionPool(InetSocketAddress address, int size, long requestTimeoutMs, CoordinatorMetrics.Participant metrics,
+                   ParticipantConnection.RequestHandler requests) {
+        this.address = address;
+        this.connections = new AtomicReferenceArray<>(size);
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.metrics = metrics;
+        this.requests = requests;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    CoordinatorMetrics.Participant metrics() {
+        return metrics;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    CompletableFuture<Message> request(Message message) {
+        try {
+            return acquire().request(message, requestTimeoutMs);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    boolean send(Message message) {
+        try {
+            return acquire().send(message);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    int openConnections() {
+        int open = 0;
+        for (int slot = 0; slot < connections.length(); slot++) {
+            ParticipantConnection connection = connections.get(slot);
+            if (connection != null && connection.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    int pendingRequests() {
+        int pending = 0;
+        for (int slot = 0; slot < connections.length(); slot++) {
+            ParticipantConnection connection = connections.get(slot);
+            if (connection != null) {
+                pending += connection.pendingCount();
+            }
+        }
+        return pending;
+    }
+
+    private ParticipantConnection acquire() throws IOException {
+        int start = Math.floorMod(next.getAndIncrement(), connections.length());
+        for (int i = 0; i < connections.length(); i++) {
+            ParticipantConnection connection = connections.get((start + i) % connections.length());
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+        }
+        return reconnect(start);
+    }
+
+    private ParticipantConnection reconnect(int slot) throws IOException {
+        synchronized (connections) {
+            ParticipantConnection current = connections.get(slot);
+            if (current != null && current.isOpen()) {
+                return current;
+            }
+            if (closed) {
+                throw new IOException("Connection pool for " + address + " is closed");
+            }
+            long now = System.currentTimeMillis();
+            if (now < nextConnectAttemptMs) {
+                throw new IOException("Participant " + address + " unreachable, retrying in "
+                                          + (nextConnectAttemptMs - now) + " ms");
+            }
+            long start = System.nanoTime();
+            try {
+                ParticipantConnection connection = ParticipantConnection.open(address, CONNECT_TIMEOUT_MS, requests);
+                metrics.connect.record(System.nanoTime() - start);
+                connections.set(slot, connection);
+                backoffMs = MIN_BACKOFF_MS;
+                return connection;
+            } catch (IOException e) {
+                metrics.connectFailures.increment();
+                nextConnectAttemptMs = now + backoffMs;
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                throw e;
+            }
+        }
+    }
+
+    // Pings idle connections and refills slots whose connection has died
+    void healthCheck() {
+        for (int slot = 0; slot < connections.length(); slot++) {
+            ParticipantConnection connection = connections.get(slot);
+            if (connection == null || !connection.isOpen()) {
+                try {
+                    reconnect(slot);
+                } catch (IOException e) {
+                    logger.debug("Reconnect to {} failed: {}", address, e.getMessage());
+                }
+            } else if (connection.idleNanos() > IDLE_PING_NANOS && connection.pendingCount() == 0) {
+                connection.request(Message.of(MessageType.PING, TransactionIds.next()), requestTimeoutMs)
+                    .whenComplete((pong, e) -> {
+                        if (e != null) {
+                            logger.warn("Health check of {} failed: {}", address, e.getMessage());
+                            connection.close();
+                        }
+                    });
+            }
+        }
+    }
+
+    void close() {
+        synchronized (connections) {
+            closed = true;
+            for (int slot = 0; slot < connections.length(); slot++) {
+                ParticipantConnection connection = connections.get(slot);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -2,130 +2,656 @@ package pob;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.logging.*;
+import java.util.concurrent.atomic.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Coordinator {
 
-    private static final Logger logger = Logger.getLogger(Coordinator.class.getName());
-    private static final int NUM_SERVERS = 6;
+    private static final Logger logger = LoggerFactory.getLogger(Coordinator.class);
     private static final int[] SERVER_PORTS = {5000, 5001, 5002, 5003, 5004, 5005};
     private static final int TIMEOUT_MS = 5000; // 5 second timeout
+    private static final int ROUND_TIMEOUT_MS = TIMEOUT_MS;
+    private static final int CONNECTIONS_PER_PARTICIPANT = 2;
+    private static final int HEALTH_CHECK_INTERVAL_MS = 1000;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long BATCH_WINDOW_MICROS = 2000;
+    private static final Path DEFAULT_LOG_DIR = Path.of("data", "coordinator");
+    // Hierarchical 2PC once there are more UP members than this; below 2 every member is contacted directly
+    private static final int TREE_FANOUT = Integer.getInteger(CommitTree.FANOUT_PROPERTY, 0);
 
-    private final ExecutorService executorService;
+    private final Membership membership;
+    // Every member's pool, and the ones currently UP that new transactions are prepared on
+    private final ConcurrentHashMap<InetSocketAddress, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private volatile Map<InetSocketAddress, ConnectionPool> view = Map.of();
+    // Key owners among all members, UP or not, so keys do not move while a member is DOWN
+    private volatile PartitionMap partitions;
+    // Guarded by membership, see refreshView()
+    private List<InetSocketAddress> partitionMembers;
+    private final int replicas = PartitionMap.replicasFromConfig();
+    private final ScheduledExecutorService scheduler;
+    private final GroupCommitBatcher batcher;
+    private final AdmissionController admission;
+    private final DecisionLog decisionLog;
+    private final DecisionDelivery delivery;
+    private final CoordinatorMetrics metrics;
     private final ConcurrentHashMap<Integer, ServerStatus> serverStatuses;
+    // Rounds from their first PREPARE until the decision, answered PENDING to inquiries
+    private final Set<Long> undecided = ConcurrentHashMap.newKeySet();
 
+    // Participants from -Dpob.membersFile, or the six local servers
     public Coordinator() {
-        this.executorService = Executors.newFixedThreadPool(NUM_SERVERS);
-        this.serverStatuses = new ConcurrentHashMap<>();
-        initializeLogging();
+        this(Membership.fromConfig(SERVER_PORTS), DEFAULT_LOG_DIR);
+    }
+
+    public Coordinator(int[] ports) {
+        this(ports, DEFAULT_LOG_DIR);
     }
 
-    private void initializeLogging() {
+    public Coordinator(int[] ports, Path logDir) {
+        this(Membership.ofPorts(ports), logDir);
+    }
+
+    /**
+     * Follows {@code membership} from then on: joining members get a connection
+     * pool, leaving ones lose it, and only members that are UP are prepared in
+     * new transactions. The coordinator sends the heartbeats and closes the
+     * membership on {@link #shutdown()}.
+     */
+    Coordinator(Membership membership, Path logDir) {
+        this.membership = membership;
         try {
-            FileHandler fh = new FileHandler("coordinator.log");
-            logger.addHandler(fh);
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
+            this.decisionLog = new DecisionLog(logDir);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Cannot open decision log in " + logDir, e);
         }
+        this.metrics = new CoordinatorMetrics(new Metrics("type=Coordinator"));
+        this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "coordinator-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.admission = AdmissionController.fromConfig(scheduler, metrics);
+        metrics.registry.gauge("pob_admission_limit", "", admission::limit);
+        metrics.registry.gauge("pob_admission_queued", "", admission::queued);
+        this.batcher = new GroupCommitBatcher(MAX_BATCH_SIZE, BATCH_WINDOW_MICROS, scheduler, this::runBatch);
+        this.delivery = new DecisionDelivery(scheduler, MAX_BATCH_SIZE);
+        this.serverStatuses = new ConcurrentHashMap<>();
+        membership.addListener(new Membership.Listener() {
+            @Override
+            public void joined(InetSocketAddress member) {
+                addParticipant(member);
+            }
+
+            @Override
+            public void left(InetSocketAddress member) {
+                removeParticipant(member);
+            }
+
+            @Override
+            public void stateChanged(InetSocketAddress member, Membership.State state) {
+                refreshView();
+            }
+        });
+        membership.members().forEach(this::addParticipant);
+        metrics.registry.gauge("pob_members", "state=\"up\"", () -> view.size());
+        metrics.registry.gauge("pob_members", "state=\"down\"", () -> pools.size() - view.size());
+        recoverDecisions();
+        scheduler.scheduleWithFixedDelay(this::checkConnections, 0, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        long compactIntervalMs = Long.getLong(ServerMain.CHECKPOINT_INTERVAL_PROPERTY, 30_000);
+        scheduler.scheduleWithFixedDelay(this::compactDecisionLog, compactIntervalMs, compactIntervalMs,
+                                         TimeUnit.MILLISECONDS);
+        membership.start(scheduler, this::heartbeat);
     }
 
-    public boolean startTwoPhaseCommit(int value, int successPerc) {
-        List<Future<Boolean>> prepareResults = new ArrayList<>();
-        Map<Integer, Socket> connections = new HashMap<>();
+    private void addParticipant(InetSocketAddress address) {
+        if (pools.containsKey(address)) {
+            return;
+        }
+        ConnectionPool pool = new ConnectionPool(address, CONNECTIONS_PER_PARTICIPANT, TIMEOUT_MS,
+                                                 metrics.participant(address), this::answer);
+        pools.put(address, pool);
+        metrics.registry.gauge("pob_pool_open_connections", Metrics.participant(address), pool::openConnections);
+        metrics.registry.gauge("pob_pool_pending_requests", Metrics.participant(address), pool::pendingRequests);
+        refreshView();
+    }
 
-        try {
-            logger.info("Starting PREPARE phase for value: " + value);
-            for (int port : SERVER_PORTS) {
-                Future<Boolean> result = executorService.submit(() ->
-                                                                    prepareServer(port, value, successPerc, connections));
-                prepareResults.add(result);
+    // Rounds already running on the member fail over the closed pool; its queued decisions are dropped
+    private void removeParticipant(InetSocketAddress address) {
+        ConnectionPool pool = pools.remove(address);
+        if (pool == null) {
+            return;
+        }
+        refreshView();
+        pool.close();
+        metrics.registry.remove("pob_pool_open_connections", Metrics.participant(address));
+        metrics.registry.remove("pob_pool_pending_requests", Metrics.participant(address));
+    }
+
+    // Rebuilt on every membership change, so a transaction reads one consistent snapshot.
+    // Locks the membership, which listeners are already called under, so there is one lock order.
+    private void refreshView() {
+        synchronized (membership) {
+            Map<InetSocketAddress, ConnectionPool> up = new LinkedHashMap<>();
+            List<InetSocketAddress> members = new ArrayList<>();
+            for (InetSocketAddress member : membership.members()) {
+                ConnectionPool pool = pools.get(member);
+                if (pool == null) {
+                    continue;
+                }
+                members.add(member);
+                if (membership.state(member) == Membership.State.UP) {
+                    up.put(member, pool);
+                }
+            }
+            if (partitions == null || !members.equals(partitionMembers)) {
+                partitions = new PartitionMap(members, replicas);
+                partitionMembers = members;
             }
+            view = Collections.unmodifiableMap(up);
+        }
+    }
 
-            boolean allPrepared = waitForAllResults(prepareResults);
+    private CompletableFuture<?> heartbeat(InetSocketAddress member) {
+        ConnectionPool pool = pools.get(member);
+        return pool == null
+            ? CompletableFuture.completedFuture(null)
+            : pool.request(Message.of(MessageType.PING, TransactionIds.next(), Resolution.HEARTBEAT));
+    }
 
-            String command = allPrepared ? "COMMIT" : "ROLLBACK";
-            logger.info("Starting " + command + " phase");
+    /**
+     * Answers a participant's INQUIRE about its in-doubt transactions, see
+     * {@link Resolution}. A decided round is no longer undecided once its
+     * COMMIT record is durable, so COMMIT is only answered for forced commits.
+     */
+    private Message answer(Message request) {
+        if (request.type != MessageType.INQUIRE) {
+            logger.warn("Unexpected request from participant: {}", request);
+            return null;
+        }
+        StringBuilder outcomes = new StringBuilder();
+        String[][] inDoubt = request.entries(0);
+        for (String[] entry : inDoubt) {
+            long txId = Long.parseLong(entry[0]);
+            Resolution resolution;
+            if (undecided.contains(txId)) {
+                resolution = Resolution.PENDING;
+            } else if (decisionLog.isCommitted(txId)) {
+                resolution = Resolution.COMMIT;
+            } else if (decisionLog.isIssued(txId)) {
+                resolution = Resolution.ABORT;
+            } else {
+                resolution = Resolution.UNKNOWN;
+            }
+            if (!outcomes.isEmpty()) {
+                outcomes.append(Message.ENTRY_SEPARATOR);
+            }
+            outcomes.append(txId).append(Message.FIELD_SEPARATOR).append(resolution.code);
+        }
+        metrics.inquiries.increment();
+        metrics.inquiredTransactions.add(inDoubt.length);
+        return Message.of(MessageType.OUTCOMES, request.txId, outcomes);
+    }
 
-            // Send commit/rollback to all servers in parallel
-            List<Future<Void>> commitResults = new ArrayList<>();
-            for (Map.Entry<Integer, Socket> conn : connections.entrySet()) {
-                Future<Void> result = executorService.submit(() -> {
-                    sendCommand(conn.getValue(), command);
-                    return null;
-                });
-                commitResults.add(result);
+    // Re-sends COMMIT for logged commits that were not acknowledged by every participant before a restart
+    private void recoverDecisions() {
+        Map<Long, List<InetSocketAddress>> unfinished = decisionLog.unfinishedCommits();
+        if (!unfinished.isEmpty()) {
+            logger.info("Recovering {} committed transaction(s) from the decision log", unfinished.size());
+        }
+        unfinished.forEach((txId, participants) -> {
+            List<ConnectionPool> targets = new ArrayList<>();
+            for (InetSocketAddress participant : participants) {
+                ConnectionPool pool = poolFor(participant);
+                if (pool != null) {
+                    targets.add(pool);
+                } else {
+                    logger.warn("Participant {} of committed tx={} is not configured", participant, txId);
+                }
+            }
+            deliverCommit(txId, targets);
+        });
+    }
+
+    private ConnectionPool poolFor(InetSocketAddress participant) {
+        for (ConnectionPool pool : pools.values()) {
+            InetSocketAddress address = pool.getAddress();
+            if (address.getPort() == participant.getPort()
+                && address.getHostString().equals(participant.getHostString())) {
+                return pool;
             }
+        }
+        return null;
+    }
+
+    Membership getMembership() {
+        return membership;
+    }
 
-            // Wait for all commits/rollbacks to complete
-            waitForAllCommands(commitResults);
+    private void checkConnections() {
+        pools.values().forEach(ConnectionPool::healthCheck);
+    }
 
-            return allPrepared;
+    private void compactDecisionLog() {
+        try {
+            decisionLog.compact();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Decision log compaction failed", e);
+        }
+    }
 
-        } catch (Exception e) {
-            logger.severe("Transaction failed: " + e.getMessage());
+    public boolean startTwoPhaseCommit(int value, int successPerc) {
+        try {
+            return startTwoPhaseCommitAsync(value, successPerc).join().committed();
+        } catch (CompletionException e) {
+            logger.error("Transaction failed: {}", e.getMessage());
             return false;
-        } finally {
-            // Close all connections
-            connections.values().forEach(socket -> {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.warning("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    public CompletableFuture<Outcome> startTwoPhaseCommitAsync(int value, int successPerc) {
+        Map<InetSocketAddress, ConnectionPool> participants = view;
+        if (TREE_FANOUT >= 2 && participants.size() > TREE_FANOUT) {
+            return startTreeTransactionAsync(participants, value, successPerc);
+        }
+        return startTransactionAsync(participants, values(participants.keySet(), value), successPerc);
+    }
+
+    /**
+     * Hierarchical 2PC (see {@link CommitTree}): only the {@code pob.treeFanout}
+     * subtree roots are contacted. Each one votes for its whole subtree, and the
+     * decision is logged for and delivered to the subtree roots alone, which
+     * relay it down and ack once their subtree has.
+     */
+    private CompletableFuture<Outcome> startTreeTransactionAsync(Map<InetSocketAddress, ConnectionPool> members,
+                                                                 int value, int successPerc) {
+        Map<InetSocketAddress, ConnectionPool> roots = new LinkedHashMap<>();
+        Map<InetSocketAddress, List<InetSocketAddress>> subtrees = new HashMap<>();
+        for (CommitTree.Subtree subtree : CommitTree.split(List.copyOf(members.keySet()), TREE_FANOUT)) {
+            roots.put(subtree.root(), members.get(subtree.root()));
+            subtrees.put(subtree.root(), subtree.descendants());
+        }
+        return admission.admit(members.keySet(), () -> {
+            long txId = begin();
+            if (logger.isDebugEnabled()) {
+                logger.debug("PREPARE tx={} value={} participants={} subtrees={}", txId, value, members.size(),
+                             roots.size());
+            }
+            return twoPhase(txId, roots, values(roots.keySet(), value), subtrees, successPerc);
+        });
+    }
+
+    /**
+     * Runs a transaction in which only the participants listed in {@code writerPorts}
+     * write the value and the others take part read-only. Participants voting
+     * READ_ONLY are left out of phase 2, a round without YES votes needs no
+     * decision at all, and a single writer is committed in one phase once the
+     * readers have voted. Only members that are currently UP take part.
+     */
+    public CompletableFuture<Outcome> startTransactionAsync(Set<Integer> writerPorts, int value, int successPerc) {
+        Map<InetSocketAddress, ConnectionPool> participants = view;
+        Set<InetSocketAddress> writers = new LinkedHashSet<>();
+        for (InetSocketAddress address : participants.keySet()) {
+            if (writerPorts.contains(address.getPort())) {
+                writers.add(address);
+            }
+        }
+        if (writers.size() != writerPorts.size()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "Unknown or DOWN writer in " + writerPorts + ", servers: " + participants.keySet()));
+        }
+        return startTransactionAsync(participants, values(writers, value), successPerc);
+    }
+
+    /**
+     * Runs a transaction of keyed writes. Each key is routed to its owners in
+     * the partition map, and only those participants are prepared and told the
+     * decision, each with just its own keys; a transaction whose keys all live
+     * on one participant is committed there in one phase. Fails if an owner is
+     * DOWN, since its keys cannot be written elsewhere.
+     */
+    public CompletableFuture<Outcome> startTransactionAsync(Map<Long, Integer> writes, int successPerc) {
+        if (writes.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Transaction writes no keys"));
+        }
+        PartitionMap owners = partitions;
+        Map<InetSocketAddress, ConnectionPool> up = view;
+        Map<InetSocketAddress, Map<Long, Integer>> routed = new LinkedHashMap<>();
+        if (writes.containsKey(Writes.VALUE_KEY)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "Key " + Writes.VALUE_KEY + " is reserved for the single value"));
+        }
+        for (Map.Entry<Long, Integer> write : writes.entrySet()) {
+            List<InetSocketAddress> keyOwners = owners.owners(write.getKey());
+            if (keyOwners.isEmpty()) {
+                return CompletableFuture.failedFuture(new IllegalStateException("No participant is configured"));
+            }
+            for (InetSocketAddress owner : keyOwners) {
+                if (!up.containsKey(owner)) {
+                    return CompletableFuture.failedFuture(new IllegalStateException(
+                        "Owner " + owner + " of key " + write.getKey() + " is DOWN"));
                 }
-            });
+                routed.computeIfAbsent(owner, o -> new LinkedHashMap<>()).put(write.getKey(), write.getValue());
+            }
+        }
+        Map<InetSocketAddress, ConnectionPool> participants = new LinkedHashMap<>();
+        Map<InetSocketAddress, String> values = new HashMap<>();
+        routed.forEach((owner, ownWrites) -> {
+            participants.put(owner, up.get(owner));
+            values.put(owner, Writes.encode(ownWrites));
+        });
+        return startTransactionAsync(participants, values, successPerc);
+    }
+
+    // The same wire value for every writer
+    private static Map<InetSocketAddress, String> values(Collection<InetSocketAddress> writers, int value) {
+        String encoded = Writes.encodeValue(value);
+        Map<InetSocketAddress, String> values = new HashMap<>();
+        writers.forEach(writer -> values.put(writer, encoded));
+        return values;
+    }
+
+    // values holds the wire form of each writer's writes; participants without one take part read-only
+    private CompletableFuture<Outcome> startTransactionAsync(Map<InetSocketAddress, ConnectionPool> participants,
+                                                             Map<InetSocketAddress, String> values,
+                                                             int successPerc) {
+        if (participants.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No participant is UP"));
         }
+        return admission.admit(participants.keySet(), () -> runTransaction(participants, values, successPerc));
     }
 
-    private boolean prepareServer(int port, int value, int successPerc,
-                                  Map<Integer, Socket> connections) throws IOException {
-        Socket socket = new Socket("localhost", port);
-        connections.put(port, socket);
+    private CompletableFuture<Outcome> runTransaction(Map<InetSocketAddress, ConnectionPool> participants,
+                                                      Map<InetSocketAddress, String> values, int successPerc) {
+        long txId = begin();
 
-        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        if (values.size() == 1) {
+            InetSocketAddress writer = values.keySet().iterator().next();
+            ConnectionPool writerPool = participants.get(writer);
+            String value = values.get(writer);
+            if (participants.size() == 1) {
+                return commitOnePhase(txId, writerPool, value, successPerc);
+            }
+            Map<InetSocketAddress, ConnectionPool> readers = new LinkedHashMap<>(participants);
+            readers.remove(writer);
+            if (logger.isDebugEnabled()) {
+                logger.debug("PREPARE tx={} readers={}", txId, readers.size());
+            }
+            return prepare(txId, readers, Map.of(), Map.of(), successPerc)
+                .thenCompose(votes -> votes.abortReason != null
+                    ? CompletableFuture.completedFuture(rollback(txId, votes.abortReason, readers.values()))
+                    : commitOnePhase(txId, writerPool, value, successPerc));
+        }
 
-            socket.setSoTimeout(TIMEOUT_MS);
-            out.println("PREPARE:" + value + ":" + successPerc);
-            String response = in.readLine();
+        if (logger.isDebugEnabled()) {
+            logger.debug("PREPARE tx={} writers={} participants={}", txId, values.size(), participants.size());
+        }
+        return twoPhase(txId, participants, values, Map.of(), successPerc);
+    }
 
-            boolean success = "OK".equals(response);
-            serverStatuses.put(port, new ServerStatus(port, success ? "PREPARED" : "FAILED"));
+    private CompletableFuture<Outcome> twoPhase(long txId, Map<InetSocketAddress, ConnectionPool> participants,
+                                                Map<InetSocketAddress, String> values,
+                                                Map<InetSocketAddress, List<InetSocketAddress>> subtrees,
+                                                int successPerc) {
+        return prepare(txId, participants, values, subtrees, successPerc)
+            .thenCompose(votes -> {
+                if (votes.abortReason != null) {
+                    return CompletableFuture.completedFuture(rollback(txId, votes.abortReason, participants.values()));
+                }
+                if (votes.yes.isEmpty()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("READ_ONLY tx={}", txId);
+                    }
+                    metrics.readOnly.increment();
+                    return CompletableFuture.completedFuture(finish(Outcome.committed(txId)));
+                }
+                return commit(txId, votes.yes);
+            });
+    }
+
+    private record Votes(String abortReason, List<ConnectionPool> yes) {
+    }
+
+    // The first NO, failure or the round deadline decides an abort without waiting for the rest
+    private CompletableFuture<Votes> prepare(long txId, Map<InetSocketAddress, ConnectionPool> participants,
+                                             Map<InetSocketAddress, String> values,
+                                             Map<InetSocketAddress, List<InetSocketAddress>> subtrees,
+                                             int successPerc) {
+        long start = System.nanoTime();
+        CompletableFuture<String> voting = new CompletableFuture<>();
+        Queue<ConnectionPool> yes = new ConcurrentLinkedQueue<>();
+        AtomicInteger outstandingVotes = new AtomicInteger(participants.size());
+        for (Map.Entry<InetSocketAddress, ConnectionPool> participant : participants.entrySet()) {
+            int port = participant.getKey().getPort();
+            ConnectionPool pool = participant.getValue();
+            prepareServer(port, pool, txId, values.getOrDefault(participant.getKey(), ""), successPerc,
+                          subtrees.getOrDefault(participant.getKey(), List.of()))
+                .whenComplete((vote, error) -> {
+                    if (error != null) {
+                        pool.metrics().prepareFailures.increment();
+                        voting.complete("server " + port + " failed: " + rootMessage(error));
+                    } else if (vote == Vote.NO) {
+                        voting.complete("server " + port + " voted NO");
+                    } else {
+                        if (vote == Vote.YES) {
+                            yes.add(pool);
+                        }
+                        if (outstandingVotes.decrementAndGet() == 0) {
+                            voting.complete(null);
+                        }
+                    }
+                });
+        }
+        voting.completeOnTimeout("round deadline of " + ROUND_TIMEOUT_MS + " ms exceeded",
+                                 ROUND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return voting.thenApply(abortReason -> {
+            metrics.voteWait.record(System.nanoTime() - start);
+            return new Votes(abortReason, List.copyOf(yes));
+        });
+    }
+
+    // Presumed abort: only the COMMIT decision is forced to the log; the caller does not wait for phase 2
+    private CompletableFuture<Outcome> commit(long txId, List<ConnectionPool> prepared) {
+        long votedAt = System.nanoTime();
+        List<InetSocketAddress> participants = prepared.stream().map(ConnectionPool::getAddress).toList();
+        return decisionLog.logCommit(txId, participants)
+            .handle((ignored, logError) -> {
+                if (logError != null) {
+                    return rollback(txId, "could not log COMMIT decision: " + rootMessage(logError), prepared);
+                }
+                metrics.decisionLog.record(System.nanoTime() - votedAt);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("COMMIT tx={} participants={}", txId, prepared.size());
+                }
+                deliverCommit(txId, prepared);
+                return finish(Outcome.committed(txId, votedAt));
+            });
+    }
+
+    // END is logged once every participant has acked, so a restart only re-sends what is still missing
+    private void deliverCommit(long txId, Collection<ConnectionPool> targets) {
+        delivery.deliver(txId, true, targets).thenRun(() -> decisionLog.logEnd(txId));
+    }
 
-            return success;
+    // Presumed abort: the abort is not logged, and the round completes before the participants ack it
+    private Outcome rollback(long txId, String reason, Collection<ConnectionPool> targets) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("ROLLBACK tx={} reason={}", txId, reason);
         }
+        delivery.deliver(txId, false, targets);
+        return finish(Outcome.aborted(txId, reason));
     }
 
-    private void sendCommand(Socket socket, String command) throws IOException {
-        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(command);
+    private long begin() {
+        long txId = TransactionIds.next();
+        undecided.add(txId);
+        metrics.started.increment();
+        metrics.inFlight.incrementAndGet();
+        return txId;
+    }
+
+    private Outcome finish(Outcome outcome) {
+        finish(outcome.txId(), outcome.committed() ? metrics.committed : metrics.aborted);
+        return outcome;
+    }
+
+    // Every round ends here exactly once, counted as committed, aborted or unknown
+    private void finish(long txId, LongAdder result) {
+        undecided.remove(txId);
+        result.increment();
+        metrics.inFlight.decrementAndGet();
+    }
+
+    // The sole writer decides on its own, so nothing is logged here; a lost reply leaves the outcome unknown
+    private CompletableFuture<Outcome> commitOnePhase(long txId, ConnectionPool pool, String value, int successPerc) {
+        int port = pool.getAddress().getPort();
+        if (logger.isDebugEnabled()) {
+            logger.debug("COMMIT_ONE_PHASE tx={} port={}", txId, port);
         }
+        long start = System.nanoTime();
+        return pool.request(Message.of(MessageType.COMMIT_ONE_PHASE, txId, value, successPerc))
+            .handle((reply, e) -> {
+                metrics.onePhase.increment();
+                if (e != null) {
+                    pool.metrics().prepareFailures.increment();
+                    delivery.deliver(txId, false, List.of(pool));
+                    finish(txId, metrics.unknown);
+                    throw new CompletionException(new IllegalStateException(
+                        "Outcome of one-phase commit " + txId + " on server " + port + " is unknown", e));
+                }
+                pool.metrics().prepareRoundTrip.record(System.nanoTime() - start);
+                boolean committed = reply.type == MessageType.COMMITTED;
+                serverStatuses.put(port, new ServerStatus(port, committed ? "COMMITTED" : "FAILED"));
+                return finish(committed ? Outcome.committed(txId)
+                    : Outcome.aborted(txId, "server " + port + " aborted one-phase commit"));
+            });
     }
 
-    private boolean waitForAllResults(List<Future<Boolean>> results) {
-        boolean allSuccess = true;
-        for (Future<Boolean> result : results) {
-            try {
-                allSuccess &= result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                logger.warning("Server prepare failed: " + e.getMessage());
-                allSuccess = false;
+    /**
+     * Group-commit front end: the transaction is collected with other concurrent
+     * submissions and prepared, decided and acknowledged together with them in
+     * one PREPARE_BATCH / DECIDE_BATCH round trip per participant. Each caller
+     * still gets the outcome of its own transaction.
+     */
+    public CompletableFuture<Outcome> submit(int value, int successPerc) {
+        return admission.admit(view.keySet(), () -> batcher.submit(value, successPerc));
+    }
+
+    private void runBatch(List<GroupCommitBatcher.Entry> batch) {
+        // Without a voter every entry would count as a committed read-only transaction
+        List<ConnectionPool> participants = List.copyOf(view.values());
+        if (participants.isEmpty()) {
+            IllegalStateException noParticipant = new IllegalStateException("No participant is UP");
+            batch.forEach(entry -> entry.outcome.completeExceptionally(noParticipant));
+            return;
+        }
+        long batchId = TransactionIds.next();
+        batch.forEach(entry -> undecided.add(entry.txId));
+        metrics.started.add(batch.size());
+        metrics.inFlight.addAndGet(batch.size());
+        if (logger.isDebugEnabled()) {
+            logger.debug("PREPARE_BATCH batch={} size={}", batchId, batch.size());
+        }
+
+        StringBuilder prepares = new StringBuilder();
+        for (GroupCommitBatcher.Entry entry : batch) {
+            if (!prepares.isEmpty()) {
+                prepares.append(Message.ENTRY_SEPARATOR);
             }
+            prepares.append(entry.txId).append(Message.FIELD_SEPARATOR).append(Writes.encodeValue(entry.value))
+                .append(Message.FIELD_SEPARATOR).append(entry.successPerc);
+        }
+        Message prepareBatch = Message.of(MessageType.PREPARE_BATCH, batchId, prepares);
+
+        // A participant that fails to answer votes NO for the whole batch
+        List<CompletableFuture<Map<Long, Vote>>> votes = new ArrayList<>();
+        for (ConnectionPool pool : participants) {
+            long start = System.nanoTime();
+            votes.add(pool.request(prepareBatch)
+                          .thenApply(reply -> {
+                              pool.metrics().prepareRoundTrip.record(System.nanoTime() - start);
+                              return batchVotes(reply);
+                          })
+                          .exceptionally(e -> {
+                              logger.warn("Batched prepare on {} failed: {}", pool.getAddress(), rootMessage(e));
+                              return Map.of();
+                          }));
         }
-        return allSuccess;
+
+        CompletableFuture.allOf(votes.toArray(CompletableFuture[]::new))
+            .thenAccept(ignored -> decideBatch(batchId, batch, participants,
+                                               votes.stream().map(CompletableFuture::join).toList()));
     }
 
-    private void waitForAllCommands(List<Future<Void>> results) {
-        for (Future<Void> result : results) {
-            try {
-                result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                logger.warning("Server commit/rollback failed: " + e.getMessage());
+    private static Map<Long, Vote> batchVotes(Message reply) {
+        Map<Long, Vote> votes = new HashMap<>();
+        for (String[] vote : reply.entries(0)) {
+            votes.put(Long.parseLong(vote[0]), Vote.fromCode(vote[1]));
+        }
+        return votes;
+    }
+
+    // Each participant only hears about the transactions it did not vote NO or READ_ONLY on
+    private void decideBatch(long batchId, List<GroupCommitBatcher.Entry> batch, List<ConnectionPool> participants,
+                             List<Map<Long, Vote>> votes) {
+        int committed = 0;
+        for (GroupCommitBatcher.Entry entry : batch) {
+            boolean commit = true;
+            List<ConnectionPool> prepared = new ArrayList<>();
+            for (int i = 0; i < participants.size(); i++) {
+                Vote vote = votes.get(i).get(entry.txId);
+                if (vote != null) {
+                    participants.get(i).metrics().vote(vote);
+                }
+                commit &= vote != null && vote != Vote.NO;
+                if (vote == null || vote == Vote.YES) {
+                    prepared.add(participants.get(i));
+                }
+            }
+            if (!commit) {
+                entry.outcome.complete(rollback(entry.txId, "batch " + batchId + ": not all servers voted YES",
+                                                prepared));
+            } else if (prepared.isEmpty()) {
+                metrics.readOnly.increment();
+                entry.outcome.complete(finish(Outcome.committed(entry.txId)));
+                committed++;
+            } else {
+                // All COMMIT records of the batch share one forced write in the decision log
+                commit(entry.txId, prepared).thenAccept(entry.outcome::complete);
+                committed++;
             }
         }
+        if (logger.isDebugEnabled()) {
+            logger.debug("DECIDE_BATCH batch={} committed={} size={}", batchId, committed, batch.size());
+        }
+    }
+
+    // A subtree root gets a share of the round deadline for its subtree, so it answers before the deadline
+    private CompletableFuture<Vote> prepareServer(int port, ConnectionPool pool, long txId, String value,
+                                                  int successPerc, List<InetSocketAddress> descendants) {
+        long start = System.nanoTime();
+        return pool.request(CommitTree.prepare(txId, value, successPerc, TREE_FANOUT, ROUND_TIMEOUT_MS * 3 / 4,
+                                               descendants))
+            .thenApply(response -> {
+                Vote vote = Vote.fromMessage(response);
+                pool.metrics().prepareRoundTrip.record(System.nanoTime() - start);
+                pool.metrics().vote(vote);
+                serverStatuses.put(port, new ServerStatus(port, switch (vote) {
+                    case YES -> "PREPARED";
+                    case READ_ONLY -> "READ_ONLY";
+                    case NO -> "FAILED";
+                }));
+                return vote;
+            });
+    }
+
+    private static String rootMessage(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getClass().getSimpleName() + ": " + cause.getMessage();
     }
 
     public Map<Integer, ServerStatus> getServerStatuses() {
@@ -133,13 +659,23 @@ public class Coordinator {
     }
 
     public void shutdown() {
-        executorService.shutdown();
+        admission.close();
+        membership.close();
+        delivery.close(TIMEOUT_MS);
+        scheduler.shutdown();
         try {
-            if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
+            if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
             }
         } catch (InterruptedException e) {
-            executorService.shutdownNow();
+            scheduler.shutdownNow();
+        }
+        pools.values().forEach(ConnectionPool::close);
+        metrics.registry.close();
+        try {
+            decisionLog.close();
+        } catch (IOException e) {
+            logger.warn("Error closing decision log: {}", e.getMessage());
         }
     }
 
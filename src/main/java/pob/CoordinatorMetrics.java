@@ -0,0 +1,98 @@
+package pob;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instruments of one coordinator: round outcomes and phase latencies, plus a
+ * {@link Participant} set per participant that its {@link ConnectionPool}
+ * carries around, so recording never has to look anything up.
+ */
+class CoordinatorMetrics {
+
+    final Metrics registry;
+    final AtomicInteger inFlight = new AtomicInteger();
+    final LongAdder started;
+    final LongAdder committed;
+    final LongAdder aborted;
+    final LongAdder readOnly;
+    final LongAdder onePhase;
+    // One-phase commits whose reply was lost
+    final LongAdder unknown;
+    // INQUIRE requests from participants, and the transactions they asked about
+    final LongAdder inquiries;
+    final LongAdder inquiredTransactions;
+    // Submissions turned away by admission control at once, and after waiting out the queue deadline
+    final LongAdder rejected;
+    final LongAdder expired;
+    final LatencyHistogram admissionWait;
+    // From sending the PREPAREs until the last vote or the early abort
+    final LatencyHistogram voteWait;
+    final LatencyHistogram decisionLog;
+
+    CoordinatorMetrics(Metrics registry) {
+        this.registry = registry;
+        this.started = registry.counter("pob_transactions_started_total", "");
+        this.committed = registry.counter("pob_transactions_committed_total", "");
+        this.aborted = registry.counter("pob_transactions_aborted_total", "");
+        this.readOnly = registry.counter("pob_transactions_read_only_total", "");
+        this.onePhase = registry.counter("pob_transactions_one_phase_total", "");
+        this.unknown = registry.counter("pob_transactions_unknown_total", "");
+        this.inquiries = registry.counter("pob_inquiries_total", "");
+        this.inquiredTransactions = registry.counter("pob_inquired_transactions_total", "");
+        this.rejected = registry.counter("pob_admission_rejected_total", "reason=\"limit\"");
+        this.expired = registry.counter("pob_admission_rejected_total", "reason=\"deadline\"");
+        this.admissionWait = registry.histogram("pob_admission_wait_seconds", "");
+        this.voteWait = registry.histogram("pob_vote_wait_seconds", "");
+        this.decisionLog = registry.histogram("pob_decision_log_seconds", "");
+        registry.gauge("pob_transactions_in_flight", "", inFlight::get);
+    }
+
+    Participant participant(InetSocketAddress address) {
+        return participant(registry, address);
+    }
+
+    // For connection pools outside a coordinator, e.g. a sub-coordinator's pools to its children
+    static Participant participant(Metrics registry, InetSocketAddress address) {
+        return new Participant(registry, Metrics.participant(address));
+    }
+
+    static final class Participant {
+
+        final LatencyHistogram connect;
+        final LongAdder connectFailures;
+        final LatencyHistogram prepareRoundTrip;
+        final LongAdder votesYes;
+        final LongAdder votesNo;
+        final LongAdder votesReadOnly;
+        final LongAdder prepareFailures;
+        // One DECIDE_BATCH from send to ACK_BATCH
+        final LatencyHistogram decisionAck;
+        final LongAdder decisionsDelivered;
+        final LongAdder decisionRetries;
+        final LongAdder decisionsQueued;
+
+        private Participant(Metrics registry, String labels) {
+            this.connect = registry.histogram("pob_connect_seconds", labels);
+            this.connectFailures = registry.counter("pob_connect_failures_total", labels);
+            this.prepareRoundTrip = registry.histogram("pob_prepare_round_trip_seconds", labels);
+            this.votesYes = registry.counter("pob_votes_total", labels + ",vote=\"yes\"");
+            this.votesNo = registry.counter("pob_votes_total", labels + ",vote=\"no\"");
+            this.votesReadOnly = registry.counter("pob_votes_total", labels + ",vote=\"read_only\"");
+            this.prepareFailures = registry.counter("pob_prepare_failures_total", labels);
+            this.decisionAck = registry.histogram("pob_decision_ack_seconds", labels);
+            this.decisionsDelivered = registry.counter("pob_decisions_delivered_total", labels);
+            this.decisionRetries = registry.counter("pob_decision_retries_total", labels);
+            this.decisionsQueued = registry.counter("pob_decisions_queued_total", labels);
+        }
+
+        void vote(Vote vote) {
+            switch (vote) {
+                case YES -> votesYes.increment();
+                case NO -> votesNo.increment();
+                case READ_ONLY -> votesReadOnly.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package pob;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background phase 2. Decisions are queued per participant and sent as
+ * DECIDE_BATCH messages, so one ack covers every decision that piled up while
+ * the previous batch was in flight. A batch that is not acknowledged is retried
+ * with exponential backoff until it is; participants apply decisions
+ * idempotently by transaction id, so a repeated batch does no harm.
+ */
+class DecisionDelivery {
+
+    private static final Logger logger = LoggerFactory.getLogger(DecisionDelivery.class);
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private record Decision(long txId, boolean commit, CompletableFuture<Void> acked) {
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatchSize;
+    private final ConcurrentHashMap<ConnectionPool, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    DecisionDelivery(ScheduledExecutorService scheduler, int maxBatchSize) {
+        this.scheduler = scheduler;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues the decision for every target. The returned future completes once
+     * all of them have acknowledged it, or exceptionally if a target left the
+     * cluster (its pool was closed) before it did.
+     */
+    CompletableFuture<Void> deliver(long txId, boolean commit, Collection<ConnectionPool> targets) {
+        List<CompletableFuture<Void>> acks = new ArrayList<>(targets.size());
+        for (ConnectionPool pool : targets) {
+            Decision decision = new Decision(txId, commit, new CompletableFuture<>());
+            acks.add(decision.acked);
+            outboxes.computeIfAbsent(pool, Outbox::new).add(decision);
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new));
+        pending.add(all);
+        all.whenComplete((ignored, e) -> pending.remove(all));
+        return all;
+    }
+
+    // Waits up to timeoutMs for queued decisions, then stops retrying; the decision log covers the rest
+    void close(long timeoutMs) {
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("{} decision(s) still unacknowledged at shutdown", pending.size());
+        } catch (Exception e) {
+            // Decisions for members that left are given up on; nothing to wait for there
+        }
+        closed = true;
+    }
+
+    private final class Outbox {
+
+        private final ConnectionPool pool;
+        private final Queue<Decision> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        // Set before the queue is drained for the last time, see add()
+        private volatile boolean abandoned;
+        // Only touched by the thread holding `sending`
+        private long backoffMs = MIN_BACKOFF_MS;
+
+        Outbox(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        void add(Decision decision) {
+            queue.add(decision);
+            pool.metrics().decisionsQueued.increment();
+            // Raced with abandon(): its drain may have missed this decision, so fail what is left here
+            if (abandoned) {
+                fail(new ArrayList<>());
+                return;
+            }
+            // Sent from the scheduler, so decisions queued by the same caller end up in one batch
+            if (!closed && !sending.get()) {
+                scheduler.execute(this::trySend);
+            }
+        }
+
+        private void trySend() {
+            if (closed || queue.isEmpty() || !sending.compareAndSet(false, true)) {
+                return;
+            }
+            send(new ArrayList<>(maxBatchSize));
+        }
+
+        private void send(List<Decision> batch) {
+            if (closed) {
+                sending.set(false);
+                return;
+            }
+            if (pool.isClosed()) {
+                abandon(batch);
+                return;
+            }
+            Decision next;
+            while (batch.size() < maxBatchSize && (next = queue.poll()) != null) {
+                batch.add(next);
+            }
+            StringBuilder decisions = new StringBuilder();
+            for (Decision decision : batch) {
+                if (!decisions.isEmpty()) {
+                    decisions.append(Message.ENTRY_SEPARATOR);
+                }
+                decisions.append(decision.txId).append(Message.FIELD_SEPARATOR).append(decision.commit ? 'C' : 'R');
+            }
+            long start = System.nanoTime();
+            pool.request(Message.of(MessageType.DECIDE_BATCH, TransactionIds.next(), decisions))
+                .whenComplete((ack, e) -> {
+                    if (e == null) {
+                        pool.metrics().decisionAck.record(System.nanoTime() - start);
+                        pool.metrics().decisionsDelivered.add(batch.size());
+                        backoffMs = MIN_BACKOFF_MS;
+                        batch.forEach(decision -> decision.acked.complete(null));
+                        sending.set(false);
+                        trySend();
+                    } else {
+                        retry(batch, e);
+                    }
+                });
+        }
+
+        private void retry(List<Decision> batch, Throwable error) {
+            pool.metrics().decisionRetries.increment();
+            long delay = backoffMs;
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            logger.warn("Delivery of {} decision(s) to {} failed, retrying in {} ms: {}",
+                        batch.size(), pool.getAddress(), delay, error.getMessage());
+            scheduler.schedule(() -> send(batch), delay, TimeUnit.MILLISECONDS);
+        }
+
+        // The participant left the cluster; its commits stay unfinished in the decision log
+        private void abandon(List<Decision> batch) {
+            abandoned = true;
+            outboxes.remove(pool, this);
+            fail(batch);
+            sending.set(false);
+        }
+
+        // Each queued decision is polled once, so a decision is failed by exactly one caller
+        private void fail(List<Decision> batch) {
+            Decision next;
+            while ((next = queue.poll()) != null) {
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            logger.warn("Dropping {} undelivered decision(s) for {}, it left the cluster",
+                        batch.size(), pool.getAddress());
+            IllegalStateException left = new IllegalStateException(pool.getAddress() + " left the cluster");
+            batch.forEach(decision -> decision.acked.completeExceptionally(left));
+        }
+    }
+}
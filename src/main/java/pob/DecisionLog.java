@@ -0,0 +1,200 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Coordinator decision log using presumed abort: only COMMIT decisions are
+ * recorded, and they are forced before phase 2 starts (concurrent rounds share
+ * the fsync through {@link GroupCommitLog}). Aborted and read-only rounds write
+ * nothing, so a transaction without a COMMIT record is aborted. An END record
+ * is written lazily once every participant has acknowledged the commit.
+ * <p>
+ * Every transaction id owner the coordinator issues ids under is recorded,
+ * forced, before the first of those ids goes out (see {@link TransactionIds}).
+ * The coordinator can then tell its own transactions, also those of earlier
+ * runs, from other coordinators' and presume abort for the former only.
+ * <p>
+ * That is all a restart needs, so {@link #compact()} copies the unfinished
+ * commits and the incarnations to a fresh segment and drops the older ones.
+ * Ended commits are kept, in memory and through compaction, for
+ * {@link #ENDED_RETENTION_MS}, so an inquiry that crossed the END is still
+ * answered COMMIT rather than the presumed abort.
+ */
+class DecisionLog implements Closeable {
+
+    private static final byte COMMIT = 1;
+    private static final byte END = 2;
+    private static final byte INCARNATION = 3;
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final long ENDED_RETENTION_MS = 60_000;
+
+    private final GroupCommitLog log;
+    // Commits not yet acknowledged by all participants, with the participants to notify
+    private final ConcurrentHashMap<Long, List<InetSocketAddress>> unfinished = new ConcurrentHashMap<>();
+    // Commits acknowledged by all participants, with the time of their END
+    private final ConcurrentHashMap<Long, Long> ended = new ConcurrentHashMap<>();
+    // Every transaction id owner of this coordinator, as the owner's lowest id
+    private final Set<Long> incarnations = ConcurrentHashMap.newKeySet();
+    private final LongConsumer ownerListener = this::logIncarnation;
+    // Whether anything was logged since the last compaction
+    private volatile boolean written;
+
+    DecisionLog(Path dir) throws IOException {
+        this.log = new GroupCommitLog(dir, "decisions", SEGMENT_SIZE);
+        try {
+            recover();
+            // Registered first, so an owner drawn meanwhile is recorded too
+            TransactionIds.addOwnerListener(ownerListener);
+            logIncarnation(TransactionIds.currentOwner());
+        } catch (UncheckedIOException e) {
+            close();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Durable before the first PREPARE with an id of the owner goes out: lost in a crash, the owner's rounds
+    // left in doubt would be answered UNKNOWN instead of the presumed abort and stay blocked
+    private void logIncarnation(long owner) {
+        incarnations.add(owner);
+        written = true;
+        try {
+            GroupCommitLog.await(log.append(INCARNATION, owner, EMPTY, true));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not log transaction id owner " + owner, e);
+        }
+    }
+
+    // Known before the record is queued, so a compaction rolling over behind it still copies it
+    CompletableFuture<Void> logCommit(long txId, List<InetSocketAddress> participants) {
+        unfinished.put(txId, participants);
+        written = true;
+        return log.append(COMMIT, txId, encode(participants), true)
+            .whenComplete((ignored, e) -> {
+                if (e != null) {
+                    unfinished.remove(txId);
+                }
+            });
+    }
+
+    // Queued under the lock, so an END never lands before a copy of its COMMIT
+    synchronized void logEnd(long txId) {
+        if (unfinished.remove(txId) != null) {
+            ended.put(txId, System.currentTimeMillis());
+            written = true;
+            log.append(END, txId, EMPTY, false);
+        }
+    }
+
+    /**
+     * Rewrites the log as its incarnations, unfinished commits and recently
+     * ended ones: they are copied, forced, past a roll-over and the segments
+     * before it are deleted. Does nothing if nothing was logged since the
+     * last compaction.
+     */
+    void compact() throws IOException {
+        long expired = System.currentTimeMillis() - ENDED_RETENTION_MS;
+        ended.values().removeIf(endedAt -> endedAt < expired);
+        if (!written) {
+            return;
+        }
+        written = false;
+        try {
+            long firstSegment = GroupCommitLog.await(log.rollOver());
+            List<CompletableFuture<Void>> copies = new ArrayList<>();
+            synchronized (this) {
+                for (long owner : incarnations) {
+                    copies.add(log.append(INCARNATION, owner, EMPTY, true));
+                }
+                unfinished.forEach((txId, participants) ->
+                    copies.add(log.append(COMMIT, txId, encode(participants), true)));
+                for (long txId : ended.keySet()) {
+                    copies.add(log.append(COMMIT, txId, EMPTY, true));
+                    copies.add(log.append(END, txId, EMPTY, true));
+                }
+            }
+            for (CompletableFuture<Void> copy : copies) {
+                GroupCommitLog.await(copy);
+            }
+            log.deleteSegmentsBefore(firstSegment);
+        } catch (IOException | RuntimeException e) {
+            written = true;
+            throw e;
+        }
+    }
+
+    boolean isCommitted(long txId) {
+        return unfinished.containsKey(txId) || ended.containsKey(txId);
+    }
+
+    // Whether the id was issued by this coordinator, in this run or an earlier one
+    boolean isIssued(long txId) {
+        return incarnations.contains(TransactionIds.owner(txId));
+    }
+
+    Map<Long, List<InetSocketAddress>> unfinishedCommits() {
+        return new LinkedHashMap<>(unfinished);
+    }
+
+    private void recover() throws IOException {
+        log.replay((type, txId, payload) -> {
+            switch (type) {
+                case COMMIT -> unfinished.put(txId, decode(payload));
+                case END -> {
+                    if (unfinished.remove(txId) != null) {
+                        ended.put(txId, System.currentTimeMillis());
+                    }
+                }
+                case INCARNATION -> incarnations.add(txId);
+                default -> throw new IllegalStateException("Unknown decision log record type " + type);
+            }
+        });
+    }
+
+    static byte[] encode(List<InetSocketAddress> participants) {
+        StringBuilder sb = new StringBuilder();
+        for (InetSocketAddress participant : participants) {
+            if (!sb.isEmpty()) {
+                sb.append(',');
+            }
+            sb.append(participant.getHostString()).append(':').append(participant.getPort());
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static List<InetSocketAddress> decode(ByteBuffer payload) {
+        String encoded = StandardCharsets.UTF_8.decode(payload).toString();
+        List<InetSocketAddress> participants = new ArrayList<>();
+        for (String participant : encoded.split(",")) {
+            if (!participant.isEmpty()) {
+                int colon = participant.lastIndexOf(':');
+                participants.add(InetSocketAddress.createUnresolved(participant.substring(0, colon),
+                                                                    Integer.parseInt(participant.substring(colon + 1))));
+            }
+        }
+        return participants;
+    }
+
+    @Override
+    public void close() throws IOException {
+        TransactionIds.removeOwnerListener(ownerListener);
+        log.close();
+    }
+}
@@ -0,0 +1,98 @@
+package pob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects concurrent submissions into batches that are closed either when
+ * {@code maxBatchSize} transactions have arrived or when the window opened by
+ * the first one expires, whichever happens first. Closed batches are handed to
+ * the flusher, which runs the batched 2PC round.
+ */
+class GroupCommitBatcher {
+
+    static final class Entry {
+
+        final long txId;
+        final int value;
+        final int successPerc;
+        final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+
+        Entry(long txId, int value, int successPerc) {
+            this.txId = txId;
+            this.value = value;
+            this.successPerc = successPerc;
+        }
+    }
+
+    private final int maxBatchSize;
+    private final long windowMicros;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<List<Entry>> flusher;
+
+    private List<Entry> current = new ArrayList<>();
+    private ScheduledFuture<?> windowTimer;
+    // Counts the batches taken, so a timer that fired for an earlier batch does not cut the current one short
+    private long generation;
+
+    GroupCommitBatcher(int maxBatchSize, long windowMicros, ScheduledExecutorService scheduler,
+                       Consumer<List<Entry>> flusher) {
+        this.maxBatchSize = maxBatchSize;
+        this.windowMicros = windowMicros;
+        this.scheduler = scheduler;
+        this.flusher = flusher;
+    }
+
+    CompletableFuture<Outcome> submit(int value, int successPerc) {
+        Entry entry = new Entry(TransactionIds.next(), value, successPerc);
+        List<Entry> full = null;
+        synchronized (this) {
+            current.add(entry);
+            if (current.size() >= maxBatchSize) {
+                full = takeBatch();
+            } else if (current.size() == 1) {
+                long window = generation;
+                windowTimer = scheduler.schedule(() -> flushWindow(window), windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return entry.outcome;
+    }
+
+    private void flushWindow(long window) {
+        List<Entry> batch;
+        synchronized (this) {
+            if (window != generation || current.isEmpty()) {
+                return;
+            }
+            batch = takeBatch();
+        }
+        dispatch(batch);
+    }
+
+    private List<Entry> takeBatch() {
+        List<Entry> batch = current;
+        current = new ArrayList<>(maxBatchSize);
+        generation++;
+        if (windowTimer != null) {
+            windowTimer.cancel(false);
+            windowTimer = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(List<Entry> batch) {
+        try {
+            flusher.accept(batch);
+        } catch (RuntimeException e) {
+            batch.forEach(entry -> entry.outcome.completeExceptionally(e));
+        }
+    }
+}
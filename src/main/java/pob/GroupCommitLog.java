@@ -0,0 +1,347 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only binary log on {@link FileChannel} with group commit. Appends from
+ * many threads are queued and written by a single writer thread, which drains
+ * everything that accumulated while the previous write was in progress and
+ * covers all forced records of that group with one {@code force()}.
+ * <p>
+ * Record layout: {@code [int length][int crc32c][byte type][long txId][payload]},
+ * where length counts type, txId and payload. The log is split into fixed-size,
+ * zero-filled segments {@code <name>-<seq>.log}; a zero length marks the end of
+ * the written part of a segment. The next segment is preallocated in the
+ * background while the current one fills up, so rolling over does not stall
+ * the writer. Segments covered by a checkpoint are deleted with
+ * {@link #deleteSegmentsBefore(long)}; a log small enough to hold its own
+ * state is compacted instead by copying the live records past a
+ * {@link #rollOver()} and deleting what came before.
+ */
+class GroupCommitLog implements Closeable {
+
+    static final int HEADER_BYTES = 8;
+    static final int MIN_BODY_BYTES = 1 + 8;
+    private static final int ZERO_CHUNK = 64 * 1024;
+
+    interface Visitor {
+        void visit(byte type, long txId, ByteBuffer payload);
+    }
+
+    // A roll-over request carries no record, only the future for the segment that follows it
+    private record Append(ByteBuffer record, boolean force, CompletableFuture<Void> done,
+                          CompletableFuture<Long> rolled) {
+    }
+
+    private static final Append CLOSE = new Append(null, true, null, null);
+
+    private final Path dir;
+    private final String name;
+    private final long segmentSize;
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long segmentSeq;
+    private long position;
+    private CompletableFuture<Void> nextSegment = CompletableFuture.completedFuture(null);
+    private volatile boolean closed = false;
+
+    GroupCommitLog(Path dir, String name, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        openTail();
+        this.writer = new Thread(this::writeLoop, name + "-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record. The returned future completes once the record is written
+     * and, if {@code force} is set, once it is durable on disk.
+     */
+    CompletableFuture<Void> append(byte type, long txId, byte[] payload, boolean force) {
+        int bodyLength = MIN_BODY_BYTES + payload.length;
+        if (HEADER_BYTES + bodyLength > segmentSize) {
+            return CompletableFuture.failedFuture(new IOException("Record larger than log segment"));
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        record.putInt(bodyLength).putInt(0).put(type).putLong(txId).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_BYTES, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (queue) {
+            if (closed) {
+                done.completeExceptionally(new IOException("Log " + name + " is closed"));
+            } else {
+                queue.add(new Append(record, force, done, null));
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Closes the current segment after everything queued so far, unless it is
+     * still empty. The returned future completes with the sequence of the
+     * segment that all later records go to.
+     */
+    CompletableFuture<Long> rollOver() {
+        CompletableFuture<Long> rolled = new CompletableFuture<>();
+        synchronized (queue) {
+            if (closed) {
+                rolled.completeExceptionally(new IOException("Log " + name + " is closed"));
+            } else {
+                queue.add(new Append(null, true, null, rolled));
+            }
+        }
+        return rolled;
+    }
+
+    void replay(Visitor visitor) throws IOException {
+        replay(visitor, 0);
+    }
+
+    // Replays every valid record of the segments from fromSegment on, in order
+    void replay(Visitor visitor, long fromSegment) throws IOException {
+        for (Path segment : segments()) {
+            if (sequenceOf(segment) < fromSegment) {
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+                scan(in, visitor);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Append> group = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(group);
+            if (group.remove(CLOSE)) {
+                running = false;
+            }
+            try {
+                boolean force = false;
+                for (Append append : group) {
+                    if (append.rolled != null) {
+                        if (position > 0) {
+                            nextSegment();
+                        }
+                        append.rolled.complete(segmentSeq);
+                    } else {
+                        write(append.record);
+                        force |= append.force;
+                    }
+                }
+                if (force) {
+                    channel.force(false);
+                }
+                group.forEach(append -> complete(append, null));
+            } catch (IOException | RuntimeException e) {
+                // The writer keeps running, so a later group fails on its own rather than hanging
+                group.forEach(append -> complete(append, e));
+            }
+            group.clear();
+        }
+    }
+
+    // A roll-over completed as soon as it happened, so only a failure before it is left to report
+    private static void complete(Append append, Exception e) {
+        if (append.rolled != null) {
+            if (e != null) {
+                append.rolled.completeExceptionally(e);
+            }
+        } else if (e != null) {
+            append.done.completeExceptionally(e);
+        } else {
+            append.done.complete(null);
+        }
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        if (position + record.remaining() > segmentSize) {
+            nextSegment();
+        }
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        nextSegment.join();
+        openSegment(segmentSeq + 1, 0);
+    }
+
+    // Deletes the segments before the given one, once a checkpoint covers their records
+    void deleteSegmentsBefore(long seq) throws IOException {
+        for (Path segment : segments()) {
+            if (sequenceOf(segment) < seq) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    // Waits for an append or roll-over; any failure of the write surfaces as an IOException
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Log write failed", e.getCause());
+        }
+    }
+
+    private void openTail() throws IOException {
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            openSegment(1, 0);
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        long seq = sequenceOf(last);
+        long end;
+        try (FileChannel in = FileChannel.open(last, StandardOpenOption.READ)) {
+            end = scan(in, (type, txId, payload) -> { });
+        }
+        openSegment(seq, end);
+    }
+
+    private void openSegment(long seq, long startPosition) throws IOException {
+        Path file = segmentPath(seq);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        if (channel.size() < segmentSize) {
+            preallocate(channel, segmentSize);
+        }
+        segmentSeq = seq;
+        position = startPosition;
+        // A torn record after the valid end would be misread by the next recovery
+        zeroRange(channel, startPosition, Math.min(segmentSize, startPosition + ZERO_CHUNK));
+        nextSegment = CompletableFuture.runAsync(() -> preallocate(segmentPath(seq + 1)));
+    }
+
+    private void preallocate(Path file) {
+        try (FileChannel next = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (next.size() < segmentSize) {
+                preallocate(next, segmentSize);
+            }
+        } catch (IOException e) {
+            // openSegment() preallocates synchronously if this did not finish
+        }
+    }
+
+    private static void preallocate(FileChannel channel, long size) throws IOException {
+        zeroRange(channel, channel.size(), size);
+        channel.force(true);
+    }
+
+    private static void zeroRange(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        for (long pos = from; pos < to; ) {
+            zeros.clear().limit((int) Math.min(ZERO_CHUNK, to - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    // Returns the position just after the last valid record
+    private static long scan(FileChannel in, Visitor visitor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long pos = 0;
+        long size = in.size();
+        while (pos + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(in, header, pos);
+            int length = header.getInt(0);
+            int storedCrc = header.getInt(4);
+            if (length < MIN_BODY_BYTES || pos + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(in, body, pos + HEADER_BYTES);
+            CRC32C crc = new CRC32C();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != storedCrc) {
+                break;
+            }
+            body.flip();
+            byte type = body.get();
+            long txId = body.getLong();
+            visitor.visit(type, txId, body.slice());
+            pos += HEADER_BYTES + length;
+        }
+        return pos;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of log segment");
+            }
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith(name + "-")
+                                     && p.getFileName().toString().endsWith(".log"))
+                .sorted()
+                .toList();
+        }
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(String.format("%s-%020d.log", name, seq));
+    }
+
+    private long sequenceOf(Path segment) {
+        String file = segment.getFileName().toString();
+        return Long.parseLong(file.substring(name.length() + 1, file.length() - ".log".length()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.force(false);
+        channel.close();
+    }
+}
@@ -0,0 +1,106 @@
+package pob;
+
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asks the coordinator about the participant's in-doubt transactions: those
+ * that voted YES, here or in a relayed subtree, and have not heard the
+ * decision, e.g. after a restart or a lost connection. On a coordinator
+ * heartbeat all of them go into one INQUIRE on that connection, and the
+ * OUTCOMES reply commits or rolls each one back at once, releasing its locks,
+ * so recovery takes one round trip rather than one per transaction. PENDING
+ * and UNKNOWN transactions stay in doubt until a later heartbeat.
+ * <p>
+ * Live rounds hear their decision within the coordinator's round timeout, so
+ * only transactions prepared more than {@link #IN_DOUBT_AGE_NANOS} ago are
+ * asked about, except in the first inquiry after a start, which covers
+ * everything recovered from the log.
+ */
+class InDoubtResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(InDoubtResolver.class);
+    // Every coordinator connection is heartbeaten, so inquire on only one of them at a time
+    private static final long MIN_INQUIRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long IN_DOUBT_AGE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final int port;
+    private final ParticipantEngine engine;
+    private final SubCoordinator subCoordinator;
+    private final ParticipantMetrics metrics;
+    private final AtomicLong lastInquiryNanos = new AtomicLong(System.nanoTime() - MIN_INQUIRY_INTERVAL_NANOS);
+    private final AtomicBoolean recovered = new AtomicBoolean(true);
+
+    InDoubtResolver(int port, ParticipantEngine engine, SubCoordinator subCoordinator, ParticipantMetrics metrics) {
+        this.port = port;
+        this.engine = engine;
+        this.subCoordinator = subCoordinator;
+        this.metrics = metrics;
+    }
+
+    // Called for a coordinator heartbeat received on out's connection
+    void heartbeat(PrintWriter out) {
+        long last = lastInquiryNanos.get();
+        long now = System.nanoTime();
+        if (now - last < MIN_INQUIRY_INTERVAL_NANOS || !lastInquiryNanos.compareAndSet(last, now)) {
+            return;
+        }
+        long preparedBefore = recovered.getAndSet(false) ? now : now - IN_DOUBT_AGE_NANOS;
+        Set<Long> inDoubt = new LinkedHashSet<>(engine.inDoubt(preparedBefore));
+        inDoubt.addAll(subCoordinator.inDoubt(preparedBefore));
+        if (inDoubt.isEmpty()) {
+            return;
+        }
+        StringBuilder txIds = new StringBuilder();
+        for (long txId : inDoubt) {
+            if (!txIds.isEmpty()) {
+                txIds.append(Message.ENTRY_SEPARATOR);
+            }
+            txIds.append(txId);
+        }
+        metrics.inquiries.increment();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Inquiry port={} inDoubt={}", port, inDoubt.size());
+        }
+        out.println(Message.of(MessageType.INQUIRE, TransactionIds.next(), txIds).encode());
+    }
+
+    void outcomes(Message reply) {
+        int resolved = 0;
+        for (String[] outcome : reply.entries(0)) {
+            long txId = Long.parseLong(outcome[0]);
+            Resolution resolution = Resolution.fromCode(outcome[1]);
+            if (resolution == Resolution.COMMIT || resolution == Resolution.ABORT) {
+                resolve(txId, resolution == Resolution.COMMIT);
+                resolved++;
+            }
+        }
+        metrics.resolvedByInquiry.add(resolved);
+        if (resolved > 0) {
+            logger.info("Resolved in-doubt transactions port={} resolved={} asked={}", port, resolved,
+                        reply.entries(0).length);
+        }
+    }
+
+    // As if the decision had arrived: applied here, then relayed to a subtree that voted YES
+    private void resolve(long txId, boolean commit) {
+        try {
+            if (commit) {
+                engine.commit(txId);
+            } else {
+                engine.rollback(txId);
+            }
+            subCoordinator.decide(txId, commit);
+        } catch (UncheckedIOException e) {
+            logger.error("Could not apply resolved decision port={} tx={} commit={}", port, txId, commit, e);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package pob;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Headless workload driver. Starts participants as separate JVMs (or uses
+ * running ones with {@code --ports}) and runs transactions through
+ * {@link Coordinator} for a fixed time with a {@link LoadRun}, then prints a
+ * summary and writes a JSON report.
+ * <p>
+ * Latencies are measured from the time a transaction was scheduled to start,
+ * not from when it actually started, so a stalled coordinator shows up in the
+ * percentiles (coordinated omission). Without a target rate there is no
+ * schedule, and closed-loop latencies are plain service times.
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = """
+        Usage: java pob.LoadGenerator [options]
+          --participants N     participants to start (default 3)
+          --ports P1,P2,...    use running participants instead of starting them
+          --mode open|closed   open-loop or closed-loop workload (default closed)
+          --rate TPS           target transactions per second (default 0 = as fast as possible, closed only)
+          --concurrency C      closed-loop workers / open-loop max in flight (default 16 / 10000)
+          --duration S         measured seconds (default 30)
+          --warmup S           seconds before recording starts (default 5)
+          --abort-perc P       chance in percent that each participant votes NO (default 0)
+          --keys K             write random keys out of K, routed to their owners (default 0 = every
+                               participant writes one value)
+          --writes W           keys written per transaction with --keys (default 1)
+          --dir DIR            working directory for logs and data (default data/load)
+          --report FILE        JSON report (default <dir>/report.json)""";
+
+    private static final long PARTICIPANT_START_TIMEOUT_MS = 15_000;
+
+    private final String mode;
+    private final int participantCount;
+    private final int[] externalPorts;
+    private final double rate;
+    private final int concurrency;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int abortPerc;
+    private final long keys;
+    private final int writes;
+    private final Path dir;
+    private final Path report;
+
+    private final LatencyHistogram response = new LatencyHistogram();
+    private final LatencyHistogram prepare = new LatencyHistogram();
+    private final LatencyHistogram decision = new LatencyHistogram();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Turned away by the coordinator's admission control, not counted in the throughput
+    private final AtomicLong rejected = new AtomicLong();
+    private final List<Process> participants = new ArrayList<>();
+
+    private long recordFrom;
+    private long recordUntil;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.mode = options.getOrDefault("mode", "closed");
+        if (!mode.equals("open") && !mode.equals("closed")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        this.externalPorts = options.containsKey("ports")
+            ? Stream.of(options.get("ports").split(",")).mapToInt(Integer::parseInt).toArray()
+            : null;
+        this.participantCount = externalPorts != null ? externalPorts.length
+            : Integer.parseInt(options.getOrDefault("participants", "3"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        if (mode.equals("open") && rate <= 0) {
+            throw new IllegalArgumentException("Open-loop mode needs --rate");
+        }
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", mode.equals("open") ? "10000" : "16"));
+        this.durationNanos = (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1e9);
+        this.warmupNanos = (long) (Double.parseDouble(options.getOrDefault("warmup", "5")) * 1e9);
+        this.abortPerc = Integer.parseInt(options.getOrDefault("abort-perc", "0"));
+        this.keys = Long.parseLong(options.getOrDefault("keys", "0"));
+        this.writes = Integer.parseInt(options.getOrDefault("writes", "1"));
+        if (keys > 0 && writes > keys) {
+            throw new IllegalArgumentException("--writes cannot exceed --keys");
+        }
+        this.dir = Path.of(options.getOrDefault("dir", "data/load"));
+        this.report = Path.of(options.getOrDefault("report", dir.resolve("report.json").toString()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.out.println(USAGE);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        generator.run();
+    }
+
+    private void run() throws Exception {
+        cleanWorkingDirectory();
+        int[] ports = externalPorts != null ? externalPorts : startParticipants();
+        Coordinator coordinator = new Coordinator(ports, dir.resolve("coordinator"));
+        try {
+            System.out.printf(Locale.ROOT, "Running %s loop against %d participant(s) for %.0f s (+%.0f s warmup)%n",
+                              mode, ports.length, durationNanos / 1e9, warmupNanos / 1e9);
+            long start = System.nanoTime();
+            recordFrom = start + warmupNanos;
+            recordUntil = recordFrom + durationNanos;
+            new LoadRun(workload(coordinator), mode.equals("open"), rate, concurrency, this::record)
+                .run(start, recordUntil);
+        } finally {
+            coordinator.shutdown();
+            stopParticipants();
+        }
+        printSummary();
+        writeReport();
+    }
+
+    private LoadRun.Workload workload(Coordinator coordinator) {
+        int successPerc = 100 - abortPerc;
+        if (keys == 0) {
+            return value -> coordinator.startTwoPhaseCommitAsync(value, successPerc);
+        }
+        return value -> {
+            Map<Long, Integer> keyed = new HashMap<>();
+            while (keyed.size() < writes) {
+                keyed.put(ThreadLocalRandom.current().nextLong(keys), value);
+            }
+            return coordinator.startTransactionAsync(keyed, successPerc);
+        };
+    }
+
+    private void record(long scheduled, Outcome outcome, Throwable error) {
+        long now = System.nanoTime();
+        if (scheduled < recordFrom || scheduled >= recordUntil) {
+            return;
+        }
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+            (cause instanceof RejectedExecutionException ? rejected : failed).incrementAndGet();
+            return;
+        }
+        (outcome.committed() ? committed : aborted).incrementAndGet();
+        response.record(now - scheduled);
+        prepare.record(outcome.votedAtNanos() - scheduled);
+        if (outcome.committed()) {
+            decision.record(outcome.decidedAtNanos() - outcome.votedAtNanos());
+        }
+    }
+
+    private int[] startParticipants() throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classPath = System.getProperty("java.class.path");
+        int[] ports = new int[participantCount];
+        for (int i = 0; i < participantCount; i++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                ports[i] = probe.getLocalPort();
+            }
+            Path dataDir = dir.resolve("participant-" + ports[i]);
+            File output = dir.resolve("participant-" + ports[i] + ".out").toFile();
+            participants.add(new ProcessBuilder(java, "-cp", classPath, ServerMain.class.getName(),
+                                                String.valueOf(ports[i]), dataDir.toString())
+                                 .redirectErrorStream(true)
+                                 .redirectOutput(output)
+                                 .start());
+        }
+        for (int port : ports) {
+            awaitListening(port);
+        }
+        return ports;
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PARTICIPANT_START_TIMEOUT_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Participant on port " + port + " did not start", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private void stopParticipants() throws InterruptedException {
+        for (Process participant : participants) {
+            participant.destroy();
+        }
+        for (Process participant : participants) {
+            participant.waitFor();
+        }
+    }
+
+    private void printSummary() {
+        double seconds = durationNanos / 1e9;
+        long total = committed.get() + aborted.get() + failed.get();
+        System.out.printf(Locale.ROOT, "Transactions: %d committed, %d aborted, %d failed (%.1f tx/s), %d rejected%n",
+                          committed.get(), aborted.get(), failed.get(), total / seconds, rejected.get());
+        printHistogram("response", response);
+        printHistogram("prepare", prepare);
+        printHistogram("decision", decision);
+        System.out.println("Report written to " + report);
+    }
+
+    private static void printHistogram(String name, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "  %-9s p50 %9.1f us  p99 %9.1f us  p99.9 %9.1f us  max %9.1f us%n", name,
+                          histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                          histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+    }
+
+    private void writeReport() throws IOException {
+        double seconds = durationNanos / 1e9;
+        long total = committed.get() + aborted.get() + failed.get();
+        boolean corrected = mode.equals("open") || rate > 0;
+        String json = String.format(Locale.ROOT, """
+            {
+              "mode": "%s",
+              "participants": %d,
+              "targetRate": %.1f,
+              "concurrency": %d,
+              "durationSeconds": %.1f,
+              "abortPerc": %d,
+              "keys": %d,
+              "writesPerTransaction": %d,
+              "coordinatedOmissionCorrected": %b,
+              "committed": %d,
+              "aborted": %d,
+              "failed": %d,
+              "rejected": %d,
+              "throughput": %.1f,
+              "latencyMicros": {
+                "response": %s,
+                "prepare": %s,
+                "decision": %s
+              }
+            }
+            """, mode, participantCount, rate, concurrency, seconds, abortPerc, keys, keys > 0 ? writes : 0, corrected,
+            committed.get(), aborted.get(), failed.get(), rejected.get(), total / seconds,
+            toJson(response), toJson(prepare), toJson(decision));
+        Files.createDirectories(report.toAbsolutePath().getParent());
+        Files.writeString(report, json);
+    }
+
+    private static String toJson(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT,
+                             "{\"count\": %d, \"mean\": %.1f, \"p50\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f}",
+                             histogram.count(), histogram.mean() / 1e3, histogram.percentile(50) / 1e3,
+                             histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+    }
+
+    // Only removes what earlier runs left behind, in case --dir points somewhere shared
+    private void cleanWorkingDirectory() throws IOException {
+        Files.createDirectories(dir);
+        try (Stream<Path> entries = Files.list(dir)) {
+            for (Path entry : entries.toList()) {
+                String name = entry.getFileName().toString();
+                if (name.equals("coordinator") || name.startsWith("participant-")) {
+                    deleteRecursively(entry);
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
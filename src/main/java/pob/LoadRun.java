@@ -0,0 +1,128 @@
+package pob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Workload loop shared by {@link LoadGenerator} and the GUI load run. Every
+ * finished transaction is handed to a {@link Recorder} together with the time
+ * it was scheduled to start, so callers measure latency without coordinated
+ * omission.
+ * <p>
+ * In open-loop mode transactions are started on a fixed schedule no matter
+ * how many are still running (up to {@code concurrency}); in closed-loop mode
+ * {@code concurrency} workers each wait for their transaction before starting
+ * the next one, paced to the target rate if one is given.
+ */
+final class LoadRun {
+
+    interface Workload {
+        // Starts one transaction; value differs from one transaction to the next
+        CompletableFuture<Outcome> start(int value);
+    }
+
+    interface Recorder {
+        // scheduledNanos is when the transaction should have started; outcome is null when error is set
+        void record(long scheduledNanos, Outcome outcome, Throwable error);
+    }
+
+    private static final long MAX_PARK_NANOS = 50_000_000;
+
+    private final Workload workload;
+    private final boolean openLoop;
+    private final double rate;
+    private final int concurrency;
+    private final Recorder recorder;
+    private final AtomicInteger values = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    LoadRun(Workload workload, boolean openLoop, double rate, int concurrency, Recorder recorder) {
+        if (openLoop && rate <= 0) {
+            throw new IllegalArgumentException("Open-loop mode needs a target rate");
+        }
+        this.workload = workload;
+        this.openLoop = openLoop;
+        this.rate = rate;
+        this.concurrency = concurrency;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Starts transactions from {@code start} until {@code until} (both
+     * {@link System#nanoTime()}) or {@link #stop()}, and returns once every
+     * started transaction has been recorded.
+     */
+    void run(long start, long until) throws InterruptedException {
+        if (openLoop) {
+            runOpenLoop(start, until);
+        } else {
+            runClosedLoop(start, until);
+        }
+    }
+
+    // Nothing new is started; transactions in flight still complete and are recorded
+    void stop() {
+        stopped = true;
+    }
+
+    private void runOpenLoop(long start, long until) throws InterruptedException {
+        long interval = (long) (1e9 / rate);
+        Semaphore inFlight = new Semaphore(concurrency);
+        for (long intended = start; intended < until && !stopped; intended += interval) {
+            parkUntil(intended);
+            if (stopped) {
+                break;
+            }
+            inFlight.acquire();
+            long scheduled = intended;
+            workload.start(values.incrementAndGet())
+                .whenComplete((outcome, e) -> {
+                    recorder.record(scheduled, outcome, e);
+                    inFlight.release();
+                });
+        }
+        inFlight.acquire(concurrency);
+    }
+
+    private void runClosedLoop(long start, long until) throws InterruptedException {
+        long interval = rate > 0 ? (long) (1e9 * concurrency / rate) : 0;
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < concurrency; w++) {
+            // Workers are staggered so a paced run does not start in bursts
+            long first = start + (interval * w) / concurrency;
+            workers.add(Thread.ofVirtual().start(() -> {
+                long intended = first;
+                while (intended < until && !stopped) {
+                    parkUntil(intended);
+                    if (stopped) {
+                        break;
+                    }
+                    long began = interval > 0 ? intended : System.nanoTime();
+                    Outcome outcome = null;
+                    Throwable error = null;
+                    try {
+                        outcome = workload.start(values.incrementAndGet()).join();
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                    recorder.record(began, outcome, error);
+                    intended = interval > 0 ? intended + interval : System.nanoTime();
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Parks in short slices so stop() is noticed even when the pacing interval is long
+    private void parkUntil(long deadline) {
+        for (long wait = deadline - System.nanoTime(); wait > 0 && !stopped; wait = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+        }
+    }
+}
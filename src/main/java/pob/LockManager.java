@@ -0,0 +1,134 @@
+package pob;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive write locks of prepared transactions, held from PREPARE until
+ * COMMIT or ROLLBACK. Keys hash onto a fixed number of stripes, each with its
+ * own lock, so unrelated keys rarely contend and the table never grows; two
+ * keys on one stripe conflict as if they were the same key.
+ * <p>
+ * Conflicts are resolved by wait-die: a transaction older than the holder
+ * (lower id, see {@link TransactionIds}) waits for at most {@code maxWaitMs},
+ * a younger one gives up at once. Waits only go from lower to higher ids, so
+ * no cycle can form, also across participants and coordinators, whose ids are
+ * ordered but not by age, and a conflicting round votes NO
+ * within {@code maxWaitMs} instead of running into the coordinator's timeout.
+ * {@link Policy#NO_WAIT} gives up on every conflict.
+ */
+final class LockManager {
+
+    static final String STRIPES_PROPERTY = "pob.lockStripes";
+    static final String POLICY_PROPERTY = "pob.lockPolicy";
+    static final String WAIT_PROPERTY = "pob.lockWaitMs";
+
+    enum Policy {
+        WAIT_DIE,
+        NO_WAIT
+    }
+
+    private static final long FREE = 0;
+
+    private static final class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition released = lock.newCondition();
+        long owner = FREE;
+    }
+
+    private final Stripe[] stripes;
+    private final Policy policy;
+    private final long maxWaitNanos;
+
+    LockManager(int stripeCount, Policy policy, long maxWaitMs) {
+        // Rounded up to a power of two, so the stripe is a mask of the hash
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.policy = policy;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    }
+
+    static LockManager fromConfig() {
+        return new LockManager(Integer.getInteger(STRIPES_PROPERTY, 1024),
+                               Policy.valueOf(System.getProperty(POLICY_PROPERTY, Policy.WAIT_DIE.name())),
+                               Long.getLong(WAIT_PROPERTY, 50));
+    }
+
+    /**
+     * Locks all keys for {@code txId}, or none of them. Returns false if a
+     * conflicting holder makes the transaction die, or the wait runs out.
+     * Locks already held by {@code txId} are granted again.
+     */
+    boolean acquire(long txId, Collection<Long> keys) {
+        int[] indexes = indexes(keys);
+        long deadline = System.nanoTime() + maxWaitNanos;
+        // Ascending stripe order, so two waiters never hold each other's next stripe here
+        for (int i = 0; i < indexes.length; i++) {
+            if (!acquire(stripes[indexes[i]], txId, deadline)) {
+                for (int j = 0; j < i; j++) {
+                    release(stripes[indexes[j]], txId);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean acquire(Stripe stripe, long txId, long deadline) {
+        stripe.lock.lock();
+        try {
+            while (stripe.owner != FREE && stripe.owner != txId) {
+                if (policy == Policy.NO_WAIT || txId > stripe.owner) {
+                    return false;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                stripe.released.awaitNanos(remaining);
+            }
+            stripe.owner = txId;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // Releases only the stripes txId holds, so releasing twice or after a failed acquire is harmless
+    void release(long txId, Collection<Long> keys) {
+        for (int index : indexes(keys)) {
+            release(stripes[index], txId);
+        }
+    }
+
+    private static void release(Stripe stripe, long txId) {
+        stripe.lock.lock();
+        try {
+            if (stripe.owner == txId) {
+                stripe.owner = FREE;
+                stripe.released.signalAll();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private int[] indexes(Collection<Long> keys) {
+        int[] indexes = new int[keys.size()];
+        int i = 0;
+        for (long key : keys) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            indexes[i++] = (int) (h ^ (h >>> 32)) & (stripes.length - 1);
+        }
+        return Arrays.stream(indexes).sorted().distinct().toArray();
+    }
+}
@@ -2,25 +2,43 @@ package pob;
 
 import java.util.List;
 import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import javax.swing.Timer;
 
 public class MainGuiApp extends JFrame {
 
-    private static final int NUM_SERVERS = 6;
     private static final int[] SERVER_PORTS = {5000, 5001, 5002, 5003, 5004, 5005};
     private static final Color PREPARE_COLOR = new Color(255, 140, 0); // Pomarańczowy
     private static final Color COMMIT_COLOR = new Color(0, 150, 0);    // Zielony
     private static final Color ROLLBACK_COLOR = Color.RED;             // Czerwony
     private static final Color IDLE_COLOR = Color.BLACK;               // Czarny
     private static final int SERVER_TIMEOUT = 5000; // 5 sekund timeout
-
+    private static final long RECONNECT_DELAY_MS = 1000;
+    // Zdarzenia z serwerów są łączone i odświeżane najwyżej co REPAINT_INTERVAL_MS
+    private static final int REPAINT_INTERVAL_MS = 200;
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    private static final int LOAD_HISTORY = 120;
+    private static final Path LOAD_RUN_LOG_DIR = Path.of("data", "gui-coordinator");
+
+    private final Membership membership;
+    // Plik z listą członków klastra (null, gdy porty podano wprost)
+    private final Path membersFile;
+    private final Map<InetSocketAddress, Socket> subscriptions = new ConcurrentHashMap<>();
     private JTextField valueField;
     private JTextField successPercField;
-    private List<ServerPanel> serverPanels;
+    private ParticipantTableModel participants;
     private JButton startTransactionButton;
 
     // Liczniki statystyk
@@ -39,10 +57,33 @@ public class MainGuiApp extends JFrame {
     private JLabel networkErrorCounterLabel;
     private JLabel dataErrorCounterLabel;
 
-    private Timer refreshTimer;
-
-    public MainGuiApp() {
+    // Tryb "load run": prawdziwy Coordinator pod stałym obciążeniem
+    private JTextField rateField;
+    private JTextField concurrencyField;
+    private JTextField durationField;
+    private JTextField abortPercField;
+    private JComboBox<String> loadModeBox;
+    private JButton loadRunButton;
+    private JLabel loadRunLabel;
+    private final Sparkline loadThroughput = new Sparkline(LOAD_HISTORY, "%.0f tx/s");
+    private final Sparkline loadP50 = new Sparkline(LOAD_HISTORY, "%.2f ms");
+    private final Sparkline loadP99 = new Sparkline(LOAD_HISTORY, "%.2f ms");
+    private final List<Sparkline.Renderer> loadCharts = new ArrayList<>();
+    private SwingWorker<Void, Void> loadRunWorker;
+    private volatile LoadRun loadRun;
+    private volatile boolean loadRunStopped;
+
+    // Zapisywane z wątków koordynatora, próbkowane co sekundę w wątku EDT
+    private final LongAdder loadCommitted = new LongAdder();
+    private final LongAdder loadAborted = new LongAdder();
+    private final LongAdder loadFailed = new LongAdder();
+    private final AtomicReference<LatencyHistogram> loadInterval = new AtomicReference<>(new LatencyHistogram());
+    private LatencyHistogram loadTotal = new LatencyHistogram();
+
+    public MainGuiApp(Membership membership, Path membersFile) {
         super("Two-Phase Commit Monitor");
+        this.membership = membership;
+        this.membersFile = membersFile;
         initializeUI();
     }
 
@@ -53,17 +94,26 @@ public class MainGuiApp extends JFrame {
         JPanel mainContent = new JPanel(new BorderLayout(10, 10));
         mainContent.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-        mainContent.add(createTopPanel(), BorderLayout.NORTH);
+        JPanel controls = new JPanel(new BorderLayout(10, 10));
+        controls.add(createTopPanel(), BorderLayout.NORTH);
+        controls.add(createLoadRunPanel(), BorderLayout.CENTER);
+        mainContent.add(controls, BorderLayout.NORTH);
         mainContent.add(createServersPanel(), BorderLayout.CENTER);
         mainContent.add(createStatusPanel(), BorderLayout.SOUTH);
 
         add(mainContent);
 
-        setSize(1000, 600);
+        setSize(1200, 800);
         setLocationRelativeTo(null);
 
-        refreshTimer = new Timer(500, e -> refreshAllServerStatuses());
-        refreshTimer.start();
+        followMembership();
+        new Timer(REPAINT_INTERVAL_MS, e -> participants.applyPending()).start();
+        long[] lastSample = {System.nanoTime()};
+        new Timer(SAMPLE_INTERVAL_MS, e -> {
+            long now = System.nanoTime();
+            participants.sample((now - lastSample[0]) / 1e9);
+            lastSample[0] = now;
+        }).start();
     }
 
     private JPanel createTopPanel() {
@@ -90,6 +140,69 @@ public class MainGuiApp extends JFrame {
         return panel;
     }
 
+    private JPanel createLoadRunPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createTitledBorder("Load Run (Coordinator)"),
+            BorderFactory.createEmptyBorder(5, 5, 5, 5)
+        ));
+
+        JPanel fields = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
+        fields.add(new JLabel("Mode:"));
+        loadModeBox = new JComboBox<>(new String[] {"closed", "open"});
+        fields.add(loadModeBox);
+
+        fields.add(new JLabel("Rate (tx/s, 0 = max):"));
+        rateField = new JTextField("500", 6);
+        fields.add(rateField);
+
+        fields.add(new JLabel("Concurrency:"));
+        concurrencyField = new JTextField("16", 5);
+        fields.add(concurrencyField);
+
+        fields.add(new JLabel("Duration (s):"));
+        durationField = new JTextField("30", 5);
+        fields.add(durationField);
+
+        fields.add(new JLabel("Abort %:"));
+        abortPercField = new JTextField("0", 4);
+        fields.add(abortPercField);
+
+        loadRunButton = new JButton("Start load run");
+        loadRunButton.addActionListener(e -> {
+            if (loadRunWorker == null) {
+                startLoadRun();
+                return;
+            }
+            loadRunStopped = true;
+            LoadRun run = loadRun;
+            if (run != null) {
+                run.stop();
+            }
+            loadRunButton.setEnabled(false);
+        });
+        fields.add(loadRunButton);
+        panel.add(fields, BorderLayout.NORTH);
+
+        JPanel charts = new JPanel(new GridLayout(1, 3, 10, 0));
+        String[] titles = {"Throughput", "Latency p50", "Latency p99"};
+        Sparkline[] series = {loadThroughput, loadP50, loadP99};
+        for (int i = 0; i < series.length; i++) {
+            Sparkline.Renderer chart = new Sparkline.Renderer().show(series[i]);
+            chart.setPreferredSize(new Dimension(200, 60));
+            loadCharts.add(chart);
+            JPanel box = new JPanel(new BorderLayout());
+            box.setBorder(BorderFactory.createTitledBorder(titles[i]));
+            box.add(chart);
+            charts.add(box);
+        }
+        panel.add(charts, BorderLayout.CENTER);
+
+        loadRunLabel = new JLabel("Idle");
+        panel.add(loadRunLabel, BorderLayout.SOUTH);
+        return panel;
+    }
+
     private JPanel createServersPanel() {
         JPanel wrapperPanel = new JPanel(new BorderLayout());
         wrapperPanel.setBorder(BorderFactory.createCompoundBorder(
@@ -97,16 +210,17 @@ public class MainGuiApp extends JFrame {
             BorderFactory.createEmptyBorder(5, 5, 5, 5)
         ));
 
-        JPanel gridPanel = new JPanel(new GridLayout(NUM_SERVERS, 1, 5, 5));
-        serverPanels = new ArrayList<>();
-
-        for (int i = 0; i < NUM_SERVERS; i++) {
-            ServerPanel sp = new ServerPanel("Server " + i, SERVER_PORTS[i]);
-            serverPanels.add(sp);
-            gridPanel.add(sp);
+        participants = new ParticipantTableModel(this::toggleError);
+        JTable table = new JTable(participants);
+        table.setRowHeight(22);
+        table.setFillsViewportHeight(true);
+        table.setDefaultRenderer(Sparkline.class, new Sparkline.Renderer());
+        table.getColumnModel().getColumn(ParticipantTableModel.STATUS_COLUMN).setCellRenderer(new StatusRenderer());
+        for (int column = ParticipantTableModel.FIRST_SPARKLINE_COLUMN; column < participants.getColumnCount(); column++) {
+            table.getColumnModel().getColumn(column).setPreferredWidth(180);
         }
 
-        wrapperPanel.add(new JScrollPane(gridPanel));
+        wrapperPanel.add(new JScrollPane(table));
         return wrapperPanel;
     }
 
@@ -133,182 +247,128 @@ public class MainGuiApp extends JFrame {
         return panel;
     }
 
-    private class ServerPanel extends JPanel {
-
-        private final String serverName;
-        private final int serverPort;
-        private final JLabel statusLabel;
-        private final Map<String, JToggleButton> errorButtons;
-        private final JProgressBar progressBar;
-        private Timer networkRecoveryTimer;
-        private boolean isNetworkError = false;
-
-        public ServerPanel(String serverName, int serverPort) {
-            this.serverName = serverName;
-            this.serverPort = serverPort;
-            this.errorButtons = new HashMap<>();
-
-            setLayout(new BorderLayout(5, 0));
-            setBorder(BorderFactory.createCompoundBorder(
-                BorderFactory.createEtchedBorder(),
-                BorderFactory.createEmptyBorder(5, 5, 5, 5)
-            ));
-
-            JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-            statusPanel.add(new JLabel(String.format("%-12s (port: %d)", serverName, serverPort)));
-
-            statusLabel = new JLabel("PREPARE");
-            statusLabel.setFont(new Font("Arial", Font.BOLD, 12));
-            statusLabel.setForeground(PREPARE_COLOR);
-            statusLabel.setPreferredSize(new Dimension(80, 20));
-            statusPanel.add(statusLabel);
-
-            progressBar = new JProgressBar();
-            progressBar.setPreferredSize(new Dimension(100, 20));
-            progressBar.setStringPainted(true);
-            progressBar.setString("");
-            statusPanel.add(progressBar);
-
-            add(statusPanel, BorderLayout.CENTER);
-            add(createErrorControlPanel(), BorderLayout.EAST);
-        }
-
-        private JPanel createErrorControlPanel() {
-            JPanel errorPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-
-            String[][] errorConfigs = {
-                {"Timeout", "ERROR1", "Symuluje timeout serwera (10s opóźnienie)"},
-                {"Network", "ERROR2", "Symuluje błąd sieci (server offline na 10s)"},
-                {"Data", "ERROR3", "Symuluje błąd danych"}
-            };
-
-            for (String[] config : errorConfigs) {
-                JToggleButton errorButton = new JToggleButton(config[0]);
-                errorButton.setToolTipText(config[2]);
-                errorButton.setPreferredSize(new Dimension(80, 25));
-                errorButton.addActionListener(e -> toggleError(config[1], errorButton.isSelected()));
-                errorButtons.put(config[1], errorButton);
-                errorPanel.add(errorButton);
-            }
+    private static class StatusRenderer extends DefaultTableCellRenderer {
 
-            return errorPanel;
+        StatusRenderer() {
+            setFont(new Font("Arial", Font.BOLD, 12));
         }
 
-        private void toggleError(String errorType, boolean enabled) {
-            try (Socket socket = new Socket("localhost", serverPort);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                socket.setSoTimeout(SERVER_TIMEOUT);
-
-                if (errorType.equals("ERROR2") && enabled) {
-                    handleNetworkError();
-                } else {
-                    out.println(enabled ? errorType : "ERROR_CLEAR");
-                    String response = in.readLine();
-
-                    if (enabled) {
-                        updateStatistics(errorType);
-                    }
-                }
-
-                refreshStatus();
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            setForeground(switch (String.valueOf(value)) {
+                case "PREPARE" -> PREPARE_COLOR;
+                case "COMMIT" -> COMMIT_COLOR;
+                case "ROLLBACK" -> ROLLBACK_COLOR;
+                case ParticipantTableModel.OFFLINE -> Color.GRAY;
+                default -> IDLE_COLOR;
+            });
+            return this;
+        }
+    }
 
+    // Wywoływane w wątku EDT po kliknięciu w kolumnę błędu; samo żądanie idzie w tle
+    private void toggleError(InetSocketAddress member, String errorType, boolean enabled) {
+        if (enabled) {
+            updateStatistics(errorType);
+        }
+        // Błąd sieci jest tylko symulowany w GUI, do serwera trafia dopiero ERROR_CLEAR
+        if (errorType.equals("ERROR2") && enabled) {
+            return;
+        }
+        Thread.ofVirtual().start(() -> {
+            try {
+                request(member, Message.of(MessageType.ERROR, 0, enabled ? errorType : "ERROR_CLEAR"));
             } catch (IOException ex) {
-                setStatus("OFFLINE", Color.GRAY);
+                // Serwer niedostępny - subskrypcja i tak pokazuje OFFLINE
             }
-        }
+        });
+    }
 
-        private void handleNetworkError() {
-            isNetworkError = true;
-            setStatus("OFFLINE", Color.GRAY);
-            progressBar.setString("Server offline");
-            updateStatistics("ERROR2");
-
-            if (networkRecoveryTimer != null && networkRecoveryTimer.isRunning()) {
-                networkRecoveryTimer.restart();
-            } else {
-                networkRecoveryTimer = new Timer(10000, e -> {
-                    isNetworkError = false;
-                    ((Timer) e.getSource()).stop();
-                    errorButtons.get("ERROR2").setSelected(false);
-                    try (Socket socket = new Socket("localhost", serverPort);
-                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                        out.println("ERROR_CLEAR");
-                        setStatus("PREPARE", PREPARE_COLOR);
-                        progressBar.setString("");
-                    } catch (IOException ex) {
-                        setStatus("OFFLINE", Color.GRAY);
+    // Wiersze tabeli i subskrypcje podążają za dołączającymi i odchodzącymi członkami klastra
+    private void followMembership() {
+        membership.addListener(new Membership.Listener() {
+            @Override
+            public void joined(InetSocketAddress member) {
+                SwingUtilities.invokeLater(() -> addMember(member));
+            }
+
+            @Override
+            public void left(InetSocketAddress member) {
+                SwingUtilities.invokeLater(() -> {
+                    participants.remove(member);
+                    Socket subscription = subscriptions.remove(member);
+                    if (subscription != null) {
+                        try {
+                            subscription.close();
+                        } catch (IOException e) {
+                            // Połączenie i tak jest porzucane
+                        }
                     }
                 });
-                networkRecoveryTimer.setRepeats(false);
-                networkRecoveryTimer.start();
             }
-        }
 
-        public void setProgress(int progress, String message) {
-            progressBar.setValue(progress);
-            progressBar.setString(message);
-        }
-
-        public void setStatus(String status, Color color) {
-            statusLabel.setText(status);
-            statusLabel.setForeground(color);
-        }
-
-        public void refreshStatus() {
-            if (isNetworkError) {
-                setStatus("OFFLINE", Color.GRAY);
-                return;
+            @Override
+            public void stateChanged(InetSocketAddress member, Membership.State state) {
+                // Bez heartbeatów w GUI; dostępność widać po subskrypcji
             }
+        });
+        membership.members().forEach(this::addMember);
 
-            try (Socket socket = new Socket("localhost", serverPort);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "membership-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        membership.start(watcher, null);
+    }
 
-                socket.setSoTimeout(SERVER_TIMEOUT);
-                out.println("GET_STATUS");
-                String response = in.readLine();
-                if (response != null && response.startsWith("STATUS:")) {
-                    updateStatusFromResponse(response.substring(7));
-                }
-            } catch (IOException e) {
-                setStatus("OFFLINE", Color.GRAY);
-            }
+    private void addMember(InetSocketAddress member) {
+        ParticipantTableModel.Row row = participants.add(member);
+        if (row != null) {
+            subscribe(row);
         }
+    }
 
-        private void updateStatusFromResponse(String status) {
-            Map<String, String> statusMap = parseStatusResponse(status);
-            String mainStatus = statusMap.get("status");
-
-            if (mainStatus != null) {
-                switch (mainStatus) {
-                    case "PREPARE" -> setStatus("PREPARE", PREPARE_COLOR);
-                    case "COMMIT" -> setStatus("COMMIT", COMMIT_COLOR);
-                    case "ROLLBACK" -> setStatus("ROLLBACK", ROLLBACK_COLOR);
-                    case "IDLE" -> setStatus("IDLE", IDLE_COLOR);
+    // Jedno długotrwałe połączenie na serwer: zmiany stanu przychodzą same, bez odpytywania
+    private void subscribe(ParticipantTableModel.Row row) {
+        InetSocketAddress member = row.address;
+        Thread.ofVirtual().name("status-" + member.getHostString() + ":" + member.getPort()).start(() -> {
+            while (!row.removed) {
+                try (Socket socket = new Socket(member.getHostString(), member.getPort());
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+                    subscriptions.put(member, socket);
+                    if (row.removed) {
+                        break;
+                    }
+                    long subscriptionId = TransactionIds.next();
+                    out.println(Message.of(MessageType.SUBSCRIBE, subscriptionId).encode());
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        Message event = Message.parse(line);
+                        if (event.type == MessageType.STATUS_EVENT && event.txId == subscriptionId) {
+                            Map<String, String> changes = new HashMap<>();
+                            for (String[] field : event.entries(0)) {
+                                changes.put(field[0], field[1]);
+                            }
+                            participants.offer(row, changes);
+                        }
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    // Serwer niedostępny - ponowna próba po chwili
                 }
-            }
-
-            updateErrorButtons(statusMap);
-        }
-
-        private Map<String, String> parseStatusResponse(String status) {
-            Map<String, String> statusMap = new HashMap<>();
-            for (String part : status.split(";")) {
-                String[] keyValue = part.split("=");
-                if (keyValue.length == 2) {
-                    statusMap.put(keyValue[0].toLowerCase(), keyValue[1]);
+                subscriptions.remove(member);
+                participants.disconnected(row);
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-            return statusMap;
-        }
-
-        private void updateErrorButtons(Map<String, String> statusMap) {
-            errorButtons.get("ERROR1").setSelected("true".equals(statusMap.get("err1")));
-            errorButtons.get("ERROR2").setSelected("true".equals(statusMap.get("err2")));
-            errorButtons.get("ERROR3").setSelected("true".equals(statusMap.get("err3")));
-        }
+        });
     }
 
     private void updateStatistics(String type) {
@@ -358,10 +418,9 @@ public class MainGuiApp extends JFrame {
             return;
         }
 
-        serverPanels.forEach(sp -> {
-            sp.setStatus("IDLE", IDLE_COLOR);
-            sp.setProgress(0, "");
-        });
+        for (InetSocketAddress member : membership.members()) {
+            participants.showPhase(member, "IDLE", "");
+        }
 
         new SwingWorker<Void, Void>() {
             @Override
@@ -379,43 +438,33 @@ public class MainGuiApp extends JFrame {
 
     private void executeTwoPhaseCommit(int value, int successPerc) {
         try {
+            long txId = TransactionIds.next();
             boolean transactionSuccessful = true;
+            List<InetSocketAddress> members = membership.members();
 
-            for (int i = 0; i < NUM_SERVERS && transactionSuccessful; i++) {
+            for (int i = 0; i < members.size() && transactionSuccessful; i++) {
                 final int serverIndex = i;
-                ServerPanel currentPanel = serverPanels.get(i);
+                InetSocketAddress member = members.get(i);
 
-                SwingUtilities.invokeLater(() -> {
-                    currentPanel.setProgress(30, "Preparing...");
-                    currentPanel.setStatus("PREPARE", PREPARE_COLOR);
-                });
+                SwingUtilities.invokeLater(() -> participants.showPhase(member, "PREPARE", "Preparing..."));
 
                 Thread.sleep(500);
 
-                boolean serverPrepared = prepareServer(i, value, successPerc);
+                boolean serverPrepared = prepareServer(member, txId, value, successPerc);
 
                 if (serverPrepared) {
-                    SwingUtilities.invokeLater(() -> {
-                        currentPanel.setProgress(100, "Committed");
-                        currentPanel.setStatus("COMMIT", COMMIT_COLOR);
-                    });
+                    SwingUtilities.invokeLater(() -> participants.showPhase(member, "COMMIT", "Committed"));
                 } else {
                     transactionSuccessful = false;
-                    int finalI = i;
                     SwingUtilities.invokeLater(() -> {
-                        currentPanel.setProgress(100, "Rolled back");
-                        currentPanel.setStatus("ROLLBACK", ROLLBACK_COLOR);
-
-                        // Rollback previous servers
-                        for (int j = 0; j < finalI; j++) {
-                            ServerPanel prevPanel = serverPanels.get(j);
-                            prevPanel.setStatus("ROLLBACK", ROLLBACK_COLOR);
-                            prevPanel.setProgress(100, "Rolled back");
+                        // Rollback this and previous servers
+                        for (int j = 0; j <= serverIndex; j++) {
+                            participants.showPhase(members.get(j), "ROLLBACK", "Rolled back");
                         }
                     });
 
                     for (int j = 0; j <= i; j++) {
-                        rollbackServer(j);
+                        sendDecision(members.get(j), txId, MessageType.ROLLBACK);
                     }
 
                     updateStatistics("ROLLBACK");
@@ -425,15 +474,17 @@ public class MainGuiApp extends JFrame {
             }
 
             if (transactionSuccessful) {
+                for (InetSocketAddress member : members) {
+                    sendDecision(member, txId, MessageType.COMMIT);
+                }
                 updateStatistics("SUCCESS");
             }
 
-            // Reset progress bars after completion
+            // Reset phases after completion
             Thread.sleep(1000);
             SwingUtilities.invokeLater(() -> {
-                for (ServerPanel panel : serverPanels) {
-                    panel.setProgress(0, "");
-                    panel.setStatus("PREPARE", PREPARE_COLOR);
+                for (InetSocketAddress member : members) {
+                    participants.showPhase(member, "PREPARE", "");
                 }
             });
 
@@ -451,39 +502,190 @@ public class MainGuiApp extends JFrame {
         }
     }
 
-    private boolean prepareServer(int serverIndex, int value, int successPerc) {
-        try (Socket socket = new Socket("localhost", SERVER_PORTS[serverIndex]);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    private void startLoadRun() {
+        boolean openLoop = "open".equals(loadModeBox.getSelectedItem());
+        double rate;
+        int concurrency;
+        long durationNanos;
+        int successPerc;
+        try {
+            rate = Double.parseDouble(rateField.getText());
+            concurrency = Integer.parseInt(concurrencyField.getText());
+            durationNanos = (long) (Double.parseDouble(durationField.getText()) * 1e9);
+            int abortPerc = Integer.parseInt(abortPercField.getText());
+            if (abortPerc < 0 || abortPerc > 100) {
+                throw new IllegalArgumentException("Abort percentage must be between 0 and 100");
+            }
+            if (concurrency < 1 || durationNanos <= 0) {
+                throw new IllegalArgumentException("Concurrency and duration must be positive");
+            }
+            if (openLoop && rate <= 0) {
+                throw new IllegalArgumentException("Open-loop mode needs a rate");
+            }
+            successPerc = 100 - abortPerc;
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid number format!");
+            return;
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
+            return;
+        }
 
-            socket.setSoTimeout(SERVER_TIMEOUT);
-            out.println("PREPARE:" + value + ":" + successPerc);
-            String response = in.readLine();
-            return "OK".equals(response);
+        loadCommitted.reset();
+        loadAborted.reset();
+        loadFailed.reset();
+        loadInterval.set(new LatencyHistogram());
+        loadTotal = new LatencyHistogram();
+        LatencyHistogram total = loadTotal;
+        loadRunStopped = false;
+        loadRunButton.setText("Stop");
+        loadRunLabel.setText("Starting coordinator...");
+
+        long[] started = {System.nanoTime()};
+        long[] lastSample = {started[0], 0};
+        Timer sampler = new Timer(SAMPLE_INTERVAL_MS, e -> sampleLoadRun(started[0], durationNanos, lastSample));
+
+        loadRunWorker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                // Własne członkostwo koordynatora, żeby jego heartbeaty nie wpływały na tabelę
+                Membership members = membersFile != null
+                    ? Membership.fromFile(membersFile)
+                    : Membership.of(membership.members());
+                Coordinator coordinator = new Coordinator(members, LOAD_RUN_LOG_DIR);
+                try {
+                    LoadRun run = new LoadRun(value -> coordinator.startTwoPhaseCommitAsync(value, successPerc),
+                                              openLoop, rate, concurrency,
+                                              (scheduled, outcome, error) -> recordLoad(total, scheduled, outcome, error));
+                    loadRun = run;
+                    // Stop pressed while the coordinator was starting
+                    if (loadRunStopped) {
+                        run.stop();
+                    }
+                    started[0] = System.nanoTime();
+                    lastSample[0] = started[0];
+                    SwingUtilities.invokeLater(sampler::start);
+                    run.run(started[0], started[0] + durationNanos);
+                } finally {
+                    coordinator.shutdown();
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                sampler.stop();
+                loadRunWorker = null;
+                loadRun = null;
+                loadRunButton.setText("Start load run");
+                loadRunButton.setEnabled(true);
+                try {
+                    get();
+                    double seconds = (System.nanoTime() - started[0]) / 1e9;
+                    long finished = loadCommitted.sum() + loadAborted.sum() + loadFailed.sum();
+                    loadRunLabel.setText(String.format(Locale.ROOT,
+                        "Finished: %d committed, %d aborted, %d failed in %.1f s (%.0f tx/s), p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                        loadCommitted.sum(), loadAborted.sum(), loadFailed.sum(), seconds, finished / seconds,
+                        total.percentile(50) / 1e6, total.percentile(99) / 1e6, total.max() / 1e6));
+                } catch (Exception ex) {
+                    loadRunLabel.setText("Load run failed: " + ex.getMessage());
+                }
+            }
+        };
+        loadRunWorker.execute();
+    }
+
+    // Wywoływane z wątków koordynatora; opóźnienie liczone od planowanego startu transakcji
+    private void recordLoad(LatencyHistogram total, long scheduled, Outcome outcome, Throwable error) {
+        if (error != null) {
+            loadFailed.increment();
+            return;
+        }
+        (outcome.committed() ? loadCommitted : loadAborted).increment();
+        long latency = System.nanoTime() - scheduled;
+        loadInterval.get().record(latency);
+        total.record(latency);
+    }
 
-        } catch (IOException e) {
+    // lastSample holds the time of the previous sample and the number of transactions finished by then
+    private void sampleLoadRun(long started, long durationNanos, long[] lastSample) {
+        long now = System.nanoTime();
+        LatencyHistogram interval = loadInterval.getAndSet(new LatencyHistogram());
+        long finished = loadCommitted.sum() + loadAborted.sum() + loadFailed.sum();
+        loadThroughput.add((float) ((finished - lastSample[1]) / ((now - lastSample[0]) / 1e9)));
+        loadP50.add(interval.percentile(50) / 1e6f);
+        loadP99.add(interval.percentile(99) / 1e6f);
+        lastSample[0] = now;
+        lastSample[1] = finished;
+        loadCharts.forEach(JComponent::repaint);
+        loadRunLabel.setText(String.format(Locale.ROOT, "Running: %.0f / %.0f s, %d committed, %d aborted, %d failed",
+                                           (now - started) / 1e9, durationNanos / 1e9,
+                                           loadCommitted.sum(), loadAborted.sum(), loadFailed.sum()));
+    }
+
+    private boolean prepareServer(InetSocketAddress member, long txId, int value, int successPerc) {
+        try {
+            Message response = request(member,
+                                       Message.of(MessageType.PREPARE, txId, Writes.encodeValue(value), successPerc));
+            return response.type == MessageType.VOTE_YES || response.type == MessageType.VOTE_READ_ONLY;
+
+        } catch (IOException | IllegalArgumentException e) {
             e.printStackTrace();
             return false;
         }
     }
 
-    private void rollbackServer(int serverIndex) {
-        try (Socket socket = new Socket("localhost", SERVER_PORTS[serverIndex]);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    private void sendDecision(InetSocketAddress member, long txId, MessageType decision) {
+        try {
+            request(member, Message.of(decision, txId));
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
 
-            socket.setSoTimeout(SERVER_TIMEOUT);
-            out.println("ROLLBACK");
+    // Wysyła wiadomość V2 i czeka na odpowiedź dotyczącą tej samej transakcji
+    private static Message request(InetSocketAddress address, Message message) throws IOException {
+        try (Socket socket = new Socket(address.getHostString(), address.getPort());
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
-        } catch (IOException e) {
-            e.printStackTrace();
+            socket.setSoTimeout(SERVER_TIMEOUT);
+            out.println(message.encode());
+            String line;
+            while ((line = in.readLine()) != null) {
+                Message reply = Message.parse(line);
+                if (reply.txId == message.txId && reply.type.requestType() == message.type) {
+                    return reply;
+                }
+            }
+            throw new EOFException("Server " + address + " closed the connection");
         }
     }
 
-    private void refreshAllServerStatuses() {
-        serverPanels.forEach(ServerPanel::refreshStatus);
+    // Porty jako lista "5000,5001" i/lub zakresy "5000-5499"; domyślnie sześć lokalnych serwerów
+    static int[] parsePorts(String spec) {
+        return Arrays.stream(spec.split(","))
+            .map(String::trim)
+            .flatMapToInt(part -> {
+                int dash = part.indexOf('-');
+                return dash < 0
+                    ? IntStream.of(Integer.parseInt(part))
+                    : IntStream.rangeClosed(Integer.parseInt(part.substring(0, dash)),
+                                            Integer.parseInt(part.substring(dash + 1)));
+            })
+            .toArray();
     }
 
-    public static void main(String[] args) {
+    // Argument to plik członków klastra (jak -Dpob.membersFile) albo lista portów lokalnych serwerów
+    public static void main(String[] args) throws IOException {
+        String file = System.getProperty(Membership.FILE_PROPERTY);
+        if (file == null && args.length > 0 && Files.isRegularFile(Path.of(args[0]))) {
+            file = args[0];
+        }
+        Path membersFile = file == null ? null : Path.of(file);
+        Membership membership = membersFile != null
+            ? Membership.fromFile(membersFile)
+            : Membership.ofPorts(args.length > 0 ? parsePorts(args[0]) : SERVER_PORTS);
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
@@ -491,7 +693,7 @@ public class MainGuiApp extends JFrame {
         }
 
         SwingUtilities.invokeLater(() -> {
-            MainGuiApp app = new MainGuiApp();
+            MainGuiApp app = new MainGuiApp(membership, membersFile);
             app.setVisible(true);
         });
     }
@@ -0,0 +1,224 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The set of participants and whether each one is reachable. Members come from
+ * a config file with one {@code host:port} per line ({@code #} starts a
+ * comment), or from a fixed list, and can join or leave at runtime, either
+ * through {@link #join}/{@link #leave} or by editing the config file, which is
+ * re-read when it changes.
+ * <p>
+ * With a {@link Pinger}, every member is sent a heartbeat each interval; after
+ * {@value #MISSED_HEARTBEATS} failed heartbeats in a row it is marked
+ * {@link State#DOWN}, and the next successful one brings it back
+ * {@link State#UP}. Members start out UP.
+ * <p>
+ * Listeners are called on the thread that made the change, in order.
+ */
+class Membership implements Closeable {
+
+    static final String FILE_PROPERTY = "pob.membersFile";
+
+    private static final Logger logger = LoggerFactory.getLogger(Membership.class);
+    private static final long INTERVAL_MS = 1000;
+    private static final int MISSED_HEARTBEATS = 3;
+
+    enum State {
+        UP,
+        DOWN
+    }
+
+    interface Listener {
+        void joined(InetSocketAddress member);
+
+        void left(InetSocketAddress member);
+
+        void stateChanged(InetSocketAddress member, State state);
+    }
+
+    interface Pinger {
+        // Completes normally if the member answered in time
+        CompletableFuture<?> ping(InetSocketAddress member);
+    }
+
+    private static final class Member {
+        State state = State.UP;
+        int missedHeartbeats = 0;
+    }
+
+    private final Path configFile;
+    // Guarded by this; insertion order is the order members are shown and prepared in
+    private final Map<InetSocketAddress, Member> members = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private FileTime configModified;
+    private ScheduledFuture<?> task;
+
+    private Membership(Path configFile, List<InetSocketAddress> initial) {
+        this.configFile = configFile;
+        initial.forEach(member -> members.put(member, new Member()));
+    }
+
+    static Membership of(List<InetSocketAddress> members) {
+        return new Membership(null, members);
+    }
+
+    static Membership ofPorts(int[] ports) {
+        List<InetSocketAddress> members = new ArrayList<>();
+        for (int port : ports) {
+            members.add(new InetSocketAddress("localhost", port));
+        }
+        return of(members);
+    }
+
+    static Membership fromFile(Path configFile) throws IOException {
+        Membership membership = new Membership(configFile, parse(Files.readAllLines(configFile)));
+        membership.configModified = Files.getLastModifiedTime(configFile);
+        return membership;
+    }
+
+    // The file named by -Dpob.membersFile, or the given local ports when it is not set
+    static Membership fromConfig(int[] defaultPorts) {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            return ofPorts(defaultPorts);
+        }
+        try {
+            return fromFile(Path.of(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read membership file " + file, e);
+        }
+    }
+
+    static List<InetSocketAddress> parse(List<String> lines) {
+        Set<InetSocketAddress> members = new LinkedHashSet<>();
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            String entry = (comment < 0 ? line : line.substring(0, comment)).trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got: " + entry);
+            }
+            members.add(new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return List.copyOf(members);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    synchronized List<InetSocketAddress> members() {
+        return List.copyOf(members.keySet());
+    }
+
+    synchronized State state(InetSocketAddress member) {
+        Member m = members.get(member);
+        return m == null ? null : m.state;
+    }
+
+    synchronized void join(InetSocketAddress member) {
+        if (members.putIfAbsent(member, new Member()) == null) {
+            logger.info("Member joined: {}", member);
+            listeners.forEach(listener -> listener.joined(member));
+        }
+    }
+
+    synchronized void leave(InetSocketAddress member) {
+        if (members.remove(member) != null) {
+            logger.info("Member left: {}", member);
+            listeners.forEach(listener -> listener.left(member));
+        }
+    }
+
+    /**
+     * Re-reads the config file every interval when it has changed and, when
+     * {@code pinger} is given, sends heartbeats. Runs on {@code scheduler}
+     * until {@link #close()}.
+     */
+    synchronized void start(ScheduledExecutorService scheduler, Pinger pinger) {
+        task = scheduler.scheduleWithFixedDelay(() -> {
+            reloadIfChanged();
+            if (pinger != null) {
+                members().forEach(member -> pinger.ping(member)
+                    .whenComplete((ignored, e) -> heartbeat(member, e == null)));
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void reloadIfChanged() {
+        if (configFile == null) {
+            return;
+        }
+        try {
+            FileTime modified = Files.getLastModifiedTime(configFile);
+            if (modified.equals(configModified)) {
+                return;
+            }
+            List<InetSocketAddress> configured = parse(Files.readAllLines(configFile));
+            configModified = modified;
+            synchronized (this) {
+                for (InetSocketAddress member : members()) {
+                    if (!configured.contains(member)) {
+                        leave(member);
+                    }
+                }
+                configured.forEach(this::join);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Could not reload membership from {}: {}", configFile, e.getMessage());
+        }
+    }
+
+    private synchronized void heartbeat(InetSocketAddress member, boolean answered) {
+        Member m = members.get(member);
+        if (m == null) {
+            return;
+        }
+        State previous = m.state;
+        if (answered) {
+            m.missedHeartbeats = 0;
+            m.state = State.UP;
+        } else if (++m.missedHeartbeats >= MISSED_HEARTBEATS) {
+            m.state = State.DOWN;
+        }
+        if (m.state != previous) {
+            if (m.state == State.DOWN) {
+                logger.warn("Member {} missed {} heartbeats, marking it DOWN", member, m.missedHeartbeats);
+            } else {
+                logger.info("Member {} is UP again", member);
+            }
+            listeners.forEach(listener -> listener.stateChanged(member, m.state));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
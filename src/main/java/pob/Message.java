@@ -0,0 +1,94 @@
+package pob;
+
+import java.util.Arrays;
+
+/**
+ * Versioned 2PC wire message: {@code V2:<TYPE>:<txId>[:<arg>...]}, one per line.
+ * Every message carries the 64-bit id of the transaction it belongs to, so many
+ * rounds can share a connection and be answered out of order.
+ * <p>
+ * Batched messages carry the batch id in the transaction id field and a single
+ * argument of {@link #ENTRY_SEPARATOR}-separated entries whose fields are
+ * separated by {@link #FIELD_SEPARATOR}, e.g.
+ * {@code V2:PREPARE_BATCH:<batchId>:<txId>,<value>,<successPerc>;...}.
+ */
+public final class Message {
+
+    public static final String VERSION = "V2";
+    public static final String ENTRY_SEPARATOR = ";";
+    public static final String FIELD_SEPARATOR = ",";
+    private static final String PREFIX = VERSION + ":";
+
+    public final MessageType type;
+    public final long txId;
+    private final String[] args;
+
+    private Message(MessageType type, long txId, String[] args) {
+        this.type = type;
+        this.txId = txId;
+        this.args = args;
+    }
+
+    public static Message of(MessageType type, long txId, Object... args) {
+        String[] encoded = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            encoded[i] = String.valueOf(args[i]);
+        }
+        return new Message(type, txId, encoded);
+    }
+
+    public static boolean isVersioned(String line) {
+        return line.startsWith(PREFIX);
+    }
+
+    public static Message parse(String line) {
+        if (!isVersioned(line)) {
+            throw new IllegalArgumentException("Unsupported protocol version: " + line);
+        }
+        String[] parts = line.split(":", -1);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Invalid message format: " + line);
+        }
+        MessageType type = MessageType.valueOf(parts[1]);
+        long txId = Long.parseLong(parts[2]);
+        return new Message(type, txId, Arrays.copyOfRange(parts, 3, parts.length));
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder(32).append(PREFIX).append(type.name()).append(':').append(txId);
+        for (String arg : args) {
+            sb.append(':').append(arg);
+        }
+        return sb.toString();
+    }
+
+    public int argCount() {
+        return args.length;
+    }
+
+    public String arg(int index) {
+        return args[index];
+    }
+
+    public int intArg(int index) {
+        return Integer.parseInt(args[index]);
+    }
+
+    // Splits a batched argument into entries, each split into its fields
+    public String[][] entries(int index) {
+        if (args[index].isEmpty()) {
+            return new String[0][];
+        }
+        String[] entries = args[index].split(ENTRY_SEPARATOR);
+        String[][] fields = new String[entries.length][];
+        for (int i = 0; i < entries.length; i++) {
+            fields[i] = entries[i].split(FIELD_SEPARATOR);
+        }
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,50 @@
+package pob;
+
+public enum MessageType {
+    PREPARE,
+    VOTE_YES,
+    VOTE_NO,
+    VOTE_READ_ONLY,
+    COMMIT,
+    ACK_COMMIT,
+    ROLLBACK,
+    ACK_ROLLBACK,
+    GET_STATUS,
+    STATUS,
+    ERROR,
+    ERROR_ACK,
+    PING,
+    PONG,
+    PREPARE_BATCH,
+    VOTES,
+    DECIDE_BATCH,
+    ACK_BATCH,
+    COMMIT_ONE_PHASE,
+    COMMITTED,
+    ABORTED,
+    SUBSCRIBE,
+    STATUS_EVENT,
+    READ,
+    VALUE,
+    INQUIRE,
+    OUTCOMES;
+
+    // Typ żądania, na które odpowiada dana wiadomość (null dla żądań)
+    public MessageType requestType() {
+        return switch (this) {
+            case VOTE_YES, VOTE_NO, VOTE_READ_ONLY -> PREPARE;
+            case ACK_COMMIT -> COMMIT;
+            case ACK_ROLLBACK -> ROLLBACK;
+            case STATUS -> GET_STATUS;
+            case ERROR_ACK -> ERROR;
+            case PONG -> PING;
+            case VOTES -> PREPARE_BATCH;
+            case ACK_BATCH -> DECIDE_BATCH;
+            case COMMITTED, ABORTED -> COMMIT_ONE_PHASE;
+            case STATUS_EVENT -> SUBSCRIBE;
+            case VALUE -> READ;
+            case OUTCOMES -> INQUIRE;
+            default -> null;
+        };
+    }
+}
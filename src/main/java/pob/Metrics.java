@@ -0,0 +1,272 @@
+package pob;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of counters, gauges and latency histograms. Instruments are created
+ * up front (per participant where it matters) and kept by the code that
+ * records into them, so recording is a {@link LongAdder} or
+ * {@link LatencyHistogram} update without lookups or allocation.
+ * <p>
+ * The registry is published as a JMX MBean and, when the {@value #PORT_PROPERTY}
+ * system property is set, as Prometheus text on
+ * {@code http://localhost:<port>/metrics}. Histograms are in nanoseconds and
+ * exported in seconds.
+ */
+public final class Metrics implements Closeable {
+
+    public static final String PORT_PROPERTY = "pob.metricsPort";
+
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private sealed interface Instrument permits CounterInstrument, GaugeInstrument, HistogramInstrument {
+    }
+
+    private record CounterInstrument(LongAdder adder) implements Instrument {
+    }
+
+    private record GaugeInstrument(LongSupplier supplier) implements Instrument {
+    }
+
+    private record HistogramInstrument(LatencyHistogram histogram) implements Instrument {
+    }
+
+    // Series are keyed by "name{labels}" and sorted, so a metric's series are exported together
+    private final ConcurrentSkipListMap<String, Instrument> series = new ConcurrentSkipListMap<>();
+    private final ObjectName objectName;
+    private final HttpServer endpoint;
+
+    /**
+     * @param jmxName JMX object name properties, e.g. {@code type=Coordinator}
+     */
+    public Metrics(String jmxName) {
+        this.objectName = register(jmxName);
+        this.endpoint = startEndpoint(Integer.getInteger(PORT_PROPERTY, -1));
+    }
+
+    public LongAdder counter(String name, String labels) {
+        Instrument instrument = series.computeIfAbsent(key(name, labels), k -> new CounterInstrument(new LongAdder()));
+        return ((CounterInstrument) instrument).adder;
+    }
+
+    public LatencyHistogram histogram(String name, String labels) {
+        Instrument instrument = series.computeIfAbsent(key(name, labels),
+                                                       k -> new HistogramInstrument(new LatencyHistogram()));
+        return ((HistogramInstrument) instrument).histogram;
+    }
+
+    public void gauge(String name, String labels, LongSupplier supplier) {
+        series.put(key(name, labels), new GaugeInstrument(supplier));
+    }
+
+    // For series of things that went away, e.g. the pool of a participant that left
+    public void remove(String name, String labels) {
+        series.remove(key(name, labels));
+    }
+
+    // Label value for one participant, e.g. participant="localhost:5000"
+    static String participant(InetSocketAddress address) {
+        return "participant=\"" + address.getHostString() + ":" + address.getPort() + "\"";
+    }
+
+    private static String key(String name, String labels) {
+        return labels == null || labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    /**
+     * Prometheus text exposition of every series; histograms become summaries
+     * with p50/p99/p999 quantiles, {@code _count} and {@code _sum}.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        String lastName = null;
+        for (Map.Entry<String, Instrument> entry : series.entrySet()) {
+            String key = entry.getKey();
+            int brace = key.indexOf('{');
+            String name = brace < 0 ? key : key.substring(0, brace);
+            String labels = brace < 0 ? "" : key.substring(brace + 1, key.length() - 1);
+            Instrument instrument = entry.getValue();
+            if (!name.equals(lastName)) {
+                String type = switch (instrument) {
+                    case CounterInstrument c -> "counter";
+                    case GaugeInstrument g -> "gauge";
+                    case HistogramInstrument h -> "summary";
+                };
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                lastName = name;
+            }
+            switch (instrument) {
+                case CounterInstrument c -> sample(out, name, labels, c.adder.sum());
+                case GaugeInstrument g -> sample(out, name, labels, g.supplier.getAsLong());
+                case HistogramInstrument h -> {
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                               h.histogram.percentile(quantile * 100) / 1e9);
+                    }
+                    sample(out, name + "_count", labels, h.histogram.count());
+                    sample(out, name + "_sum", labels, h.histogram.sum() / 1e9);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value instanceof Double d ? String.format(Locale.ROOT, "%.9f", d) : value).append('\n');
+    }
+
+    private ObjectName register(String jmxName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("pob:" + jmxName);
+            // Several coordinators or participants can share a JVM (benchmarks, load runs)
+            for (int i = 2; server.isRegistered(name); i++) {
+                name = new ObjectName("pob:" + jmxName + ",instance=" + i);
+            }
+            server.registerMBean(new MetricsMBean(), name);
+            return name;
+        } catch (JMException e) {
+            logger.warn("Could not register metrics MBean {}: {}", jmxName, e.getMessage());
+            return null;
+        }
+    }
+
+    private HttpServer startEndpoint(int port) {
+        if (port < 0) {
+            return null;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            logger.info("Metrics endpoint on http://localhost:{}/metrics", server.getAddress().getPort());
+            return server;
+        } catch (IOException e) {
+            logger.warn("Could not start metrics endpoint on port {}: {}", port, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+
+    // Read-only view for JMX: one attribute per counter and gauge, and p50/p99/p999/count/max per histogram
+    private final class MetricsMBean implements DynamicMBean {
+
+        private Map<String, Object> values() {
+            Map<String, Object> values = new LinkedHashMap<>();
+            series.forEach((key, instrument) -> {
+                switch (instrument) {
+                    case CounterInstrument c -> values.put(key, c.adder.sum());
+                    case GaugeInstrument g -> values.put(key, g.supplier.getAsLong());
+                    case HistogramInstrument h -> {
+                        values.put(key + ".p50", h.histogram.percentile(50));
+                        values.put(key + ".p99", h.histogram.percentile(99));
+                        values.put(key + ".p999", h.histogram.percentile(99.9));
+                        values.put(key + ".count", h.histogram.count());
+                        values.put(key + ".max", h.histogram.max());
+                    }
+                }
+            });
+            return values;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String attribute : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(attribute, "long", attribute, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "pob metrics",
+                                 attributes.toArray(MBeanAttributeInfo[]::new), null, null, null);
+        }
+    }
+}
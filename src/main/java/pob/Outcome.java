@@ -0,0 +1,23 @@
+package pob;
+
+/**
+ * Result of a transaction. The timestamps are {@link System#nanoTime()} values
+ * taken when all votes were in and when the decision was final (after the
+ * COMMIT record was forced), so callers can split their latency by phase.
+ */
+public record Outcome(long txId, boolean committed, String reason, long votedAtNanos, long decidedAtNanos) {
+
+    static Outcome committed(long txId) {
+        long now = System.nanoTime();
+        return new Outcome(txId, true, null, now, now);
+    }
+
+    static Outcome committed(long txId, long votedAtNanos) {
+        return new Outcome(txId, true, null, votedAtNanos, System.nanoTime());
+    }
+
+    static Outcome aborted(long txId, String reason) {
+        long now = System.nanoTime();
+        return new Outcome(txId, false, reason, now, now);
+    }
+}
@@ -0,0 +1,120 @@
+package pob;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Participant state as of a point in its log: the committed keys and the
+ * transactions still in doubt. Recovery loads it and replays only the log
+ * segments from {@code firstSegment} on, so restart time depends on the size
+ * of the state rather than on the length of the history.
+ * <p>
+ * File layout: {@code [int magic][int format][long firstSegment][long lastVersion]},
+ * {@code [int keys]} then {@code [long key][int value][long version]} per key,
+ * {@code [int inDoubt]} then {@code [long txId]} and the writes as in
+ * {@link Writes#toBytes} per transaction, and a trailing {@code [long crc32c]}
+ * of everything before it. It is written to a temporary file and renamed, so
+ * a crash leaves either the old checkpoint or the new one.
+ */
+record ParticipantCheckpoint(long firstSegment, VersionedStore.Image committed,
+                             Map<Long, Map<Long, Integer>> inDoubt) {
+
+    private static final String FILE = "participant.checkpoint";
+    private static final int MAGIC = 0x504f4243;
+    private static final int FORMAT = 1;
+
+    void write(Path dir) throws IOException {
+        Path file = dir.resolve(FILE);
+        Path tmp = dir.resolve(FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(firstSegment);
+            out.writeLong(committed.lastVersion());
+            out.writeInt(committed.keys().length);
+            for (int i = 0; i < committed.keys().length; i++) {
+                out.writeLong(committed.keys()[i]);
+                out.writeInt(committed.values()[i]);
+                out.writeLong(committed.versions()[i]);
+            }
+            out.writeInt(inDoubt.size());
+            for (Map.Entry<Long, Map<Long, Integer>> tx : inDoubt.entrySet()) {
+                out.writeLong(tx.getKey());
+                out.write(Writes.toBytes(tx.getValue()));
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename has to be durable before the log segments it replaces are deleted
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory
+        }
+    }
+
+    // The last checkpoint written to dir, or null if there is none
+    static ParticipantCheckpoint read(Path dir) throws IOException {
+        Path file = dir.resolve(FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(
+                 new BufferedInputStream(Files.newInputStream(file), 64 * 1024), new CRC32C())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Not a participant checkpoint: " + file);
+            }
+            long firstSegment = in.readLong();
+            long lastVersion = in.readLong();
+            int keyCount = in.readInt();
+            long[] keys = new long[keyCount];
+            int[] values = new int[keyCount];
+            long[] versions = new long[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = in.readLong();
+                values[i] = in.readInt();
+                versions[i] = in.readLong();
+            }
+            int txCount = in.readInt();
+            Map<Long, Map<Long, Integer>> inDoubt = new LinkedHashMap<>();
+            for (int i = 0; i < txCount; i++) {
+                long txId = in.readLong();
+                int writeCount = in.readInt();
+                Map<Long, Integer> writes = new LinkedHashMap<>();
+                for (int w = 0; w < writeCount; w++) {
+                    writes.put(in.readLong(), in.readInt());
+                }
+                inDoubt.put(txId, Collections.unmodifiableMap(writes));
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                throw new IOException("Corrupt participant checkpoint: " + file);
+            }
+            return new ParticipantCheckpoint(firstSegment,
+                                             new VersionedStore.Image(keys, values, versions, lastVersion),
+                                             inDoubt);
+        }
+    }
+}
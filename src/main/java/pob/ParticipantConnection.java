@@ -0,0 +1,157 @@
+package pob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One long-lived V2 connection to a participant. Requests are written as they
+ * come and replies are matched back to their callers by transaction id and
+ * request type, so many transactions are in flight on the socket at once.
+ * Requests the participant sends the other way, such as INQUIRE, go to the
+ * connection's {@link RequestHandler}.
+ */
+class ParticipantConnection {
+
+    interface RequestHandler {
+
+        // The reply to send back, or null for none
+        Message handle(Message request);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ParticipantConnection.class);
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final ConcurrentHashMap<RequestKey, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    private final RequestHandler requests;
+    private volatile boolean open = true;
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    private ParticipantConnection(InetSocketAddress address, Socket socket, RequestHandler requests)
+        throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.requests = requests;
+        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    static ParticipantConnection open(InetSocketAddress address, int connectTimeoutMs, RequestHandler requests)
+        throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, connectTimeoutMs);
+            ParticipantConnection connection = new ParticipantConnection(address, socket, requests);
+            Thread.ofVirtual().name("reader-" + address.getPort()).start(connection::readLoop);
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    long idleNanos() {
+        return System.nanoTime() - lastActivityNanos;
+    }
+
+    CompletableFuture<Message> request(Message message, long timeoutMs) {
+        RequestKey key = new RequestKey(message.txId, message.type);
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        if (pending.putIfAbsent(key, reply) != null) {
+            reply.completeExceptionally(new IllegalStateException("Duplicate request in flight: " + message));
+            return reply;
+        }
+        reply.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+            .whenComplete((r, e) -> pending.remove(key, reply));
+
+        if (!send(message)) {
+            reply.completeExceptionally(new IOException("Connection to " + address + " is closed"));
+        }
+        return reply;
+    }
+
+    boolean send(Message message) {
+        if (!open) {
+            return false;
+        }
+        out.println(message.encode());
+        if (out.checkError()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    private void readLoop() {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lastActivityNanos = System.nanoTime();
+                Message reply;
+                try {
+                    reply = Message.parse(line);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Invalid reply from {}: {}", address, line);
+                    continue;
+                }
+                MessageType request = reply.type.requestType();
+                if (request == null) {
+                    Message answer = requests.handle(reply);
+                    if (answer != null) {
+                        send(answer);
+                    }
+                    continue;
+                }
+                CompletableFuture<Message> caller = pending.remove(new RequestKey(reply.txId, request));
+                if (caller != null) {
+                    caller.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                logger.warn("Connection to {} lost: {}", address, e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("Error closing socket: {}", e.getMessage());
+        }
+        IOException closed = new IOException("Connection to " + address + " closed");
+        pending.values().forEach(f -> f.completeExceptionally(closed));
+        pending.clear();
+    }
+
+    private record RequestKey(long txId, MessageType type) {
+    }
+}
@@ -0,0 +1,512 @@
+package pob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ParticipantEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParticipantEngine.class);
+
+    private final int port;
+    private final ParticipantLog log;
+    private final ParticipantMetrics metrics;
+    private final ConcurrentHashMap<Long, ParticipantTransaction> transactions = new ConcurrentHashMap<>();
+    // Every key this participant owns, with the provisional writes of prepared transactions
+    private final VersionedStore store = VersionedStore.fromConfig();
+    // Write locks of prepared transactions, held until COMMIT or ROLLBACK
+    private final LockManager locks = LockManager.fromConfig();
+    private final AtomicLong localTxIds = new AtomicLong();
+    // Operations in flight per epoch; a checkpoint flips the epoch and waits for the old one to drain
+    private final AtomicInteger[] operations = {new AtomicInteger(), new AtomicInteger()};
+    private volatile int epoch;
+    private long checkpointedSegment;
+
+    // Stan ostatniej operacji, raportowany przez GET_STATUS; wartość tylko po COMMIT
+    private volatile TransactionStatus status = TransactionStatus.IDLE;
+    private volatile Integer currentValue = null;
+    private volatile long lastPreparedTxId = -1;
+    private volatile Runnable statusListener = () -> { };
+
+    // BŁĘDY
+    volatile boolean timeoutError = false;
+    volatile boolean networkError = false;
+    volatile boolean dataError = false;
+
+    ParticipantEngine(int port, ParticipantLog log, ParticipantMetrics metrics) {
+        this.port = port;
+        this.log = log;
+        this.metrics = metrics;
+        metrics.registry.gauge("pob_participant_transactions_in_flight", "", this::inFlightCount);
+        metrics.registry.gauge("pob_participant_keys", "", store::size);
+    }
+
+    /**
+     * Rebuilds committed state and the in-doubt transactions from the last
+     * checkpoint and the log after it. Records from before the checkpoint's
+     * capture may be replayed over it again; they are applied in log order, so
+     * the result is the same. In-doubt transactions take their locks once the
+     * replay is done.
+     */
+    void recover() throws IOException {
+        long start = System.nanoTime();
+        checkpointedSegment = log.recover(new ParticipantLog.RecoveryHandler() {
+            @Override
+            public void restored(ParticipantCheckpoint checkpoint) {
+                store.restore(checkpoint.committed());
+                checkpoint.inDoubt().forEach(
+                    (txId, writes) -> transactions.computeIfAbsent(txId, ParticipantTransaction::new).prepare(writes));
+            }
+
+            @Override
+            public void prepared(long txId, Map<Long, Integer> writes) {
+                transactions.computeIfAbsent(txId, ParticipantTransaction::new).prepare(writes);
+            }
+
+            @Override
+            public void committed(long txId) {
+                ParticipantTransaction tx = transactions.get(txId);
+                if (tx != null && tx.commit()) {
+                    stage(txId, tx.getWrites());
+                    apply(txId, tx.getWrites());
+                }
+            }
+
+            @Override
+            public void committedOnePhase(long txId, Map<Long, Integer> writes) {
+                stage(txId, writes);
+                apply(txId, writes);
+            }
+
+            @Override
+            public void rolledBack(long txId) {
+                ParticipantTransaction tx = transactions.get(txId);
+                if (tx != null) {
+                    tx.rollback();
+                }
+            }
+        });
+        for (ParticipantTransaction tx : transactions.values()) {
+            if (tx.getStatus() == TransactionStatus.PREPARE) {
+                locks.acquire(tx.txId, isolated(tx.getWrites()).keySet());
+                stage(tx.txId, tx.getWrites());
+            }
+        }
+        logger.info("Recovered port={} keys={} inDoubt={} fromSegment={} in {} ms", port, store.size(),
+                    inFlightCount(), checkpointedSegment, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes a checkpoint of the committed state and the in-doubt transactions
+     * and drops the log segments it covers. Transactions carry on meanwhile;
+     * only the copy of the store briefly holds up staging and commits. Does
+     * nothing if nothing was logged since the last checkpoint.
+     */
+    void checkpoint() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        // Records from here on go to firstSegment or later and are replayed on top of the checkpoint
+        long firstSegment = log.rollOver();
+        if (firstSegment == checkpointedSegment) {
+            return;
+        }
+        // Whatever was logged before firstSegment has to be in the captured state, so wait for those operations
+        int previous = epoch;
+        epoch = previous ^ 1;
+        while (operations[previous].get() != 0) {
+            Thread.sleep(1);
+        }
+        // In-doubt transactions first: one that commits in between is then either in the store or replayed
+        Map<Long, Map<Long, Integer>> inDoubt = new LinkedHashMap<>();
+        for (ParticipantTransaction tx : transactions.values()) {
+            if (tx.getStatus() == TransactionStatus.PREPARE) {
+                inDoubt.put(tx.txId, tx.getWrites());
+            }
+        }
+        ParticipantCheckpoint checkpoint = new ParticipantCheckpoint(firstSegment, store.image(), inDoubt);
+        log.checkpoint(checkpoint);
+        checkpointedSegment = firstSegment;
+        metrics.checkpoint.record(System.nanoTime() - start);
+        logger.info("Checkpoint port={} keys={} inDoubt={} fromSegment={} in {} ms", port,
+                    checkpoint.committed().keys().length, inDoubt.size(), firstSegment,
+                    (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private int enter() {
+        int current = epoch;
+        operations[current].incrementAndGet();
+        return current;
+    }
+
+    private void exit(int entered) {
+        operations[entered].decrementAndGet();
+    }
+
+    // Called after every change of the reported status or error flags, on the thread that made it
+    void setStatusListener(Runnable statusListener) {
+        this.statusListener = statusListener;
+    }
+
+    long newLocalTransactionId() {
+        return -localTxIds.incrementAndGet();
+    }
+
+    long getLastPreparedTxId() {
+        return lastPreparedTxId;
+    }
+
+    int inFlightCount() {
+        int inFlight = 0;
+        for (ParticipantTransaction tx : transactions.values()) {
+            if (!tx.isFinished()) {
+                inFlight++;
+            }
+        }
+        return inFlight;
+    }
+
+    // Voted YES before the given System.nanoTime() and still waiting for the decision
+    List<Long> inDoubt(long preparedBeforeNanos) {
+        List<Long> inDoubt = new ArrayList<>();
+        for (ParticipantTransaction tx : transactions.values()) {
+            if (tx.isPreparedBefore(preparedBeforeNanos)) {
+                inDoubt.add(tx.txId);
+            }
+        }
+        return inDoubt;
+    }
+
+    // Finished transactions are kept for a while so late or repeated messages are answered consistently
+    void expireFinished(long retentionMs) {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        transactions.values().removeIf(tx -> tx.isFinishedBefore(cutoff));
+    }
+
+    Vote prepare(long txId, Map<Long, Integer> writes, int successPerc) {
+        long start = System.nanoTime();
+        Vote vote;
+        int entered = enter();
+        try {
+            vote = vote(txId, writes, successPerc);
+        } finally {
+            exit(entered);
+        }
+        metrics.prepare.record(System.nanoTime() - start);
+        metrics.vote(vote);
+        statusListener.run();
+        return vote;
+    }
+
+    // No writes, or only writes of values already committed, change nothing and vote READ_ONLY
+    private Vote vote(long txId, Map<Long, Integer> writes, int successPerc) {
+        ParticipantTransaction tx = transactions.computeIfAbsent(txId, ParticipantTransaction::new);
+        tx.steps.lock();
+        try {
+            // A repeated PREPARE gets the vote it had; only an IDLE transaction or a tombstone may vote NO below
+            TransactionStatus current = tx.getStatus();
+            if (current == TransactionStatus.PREPARE || current == TransactionStatus.COMMIT) {
+                Vote again = tx.getWrites().equals(writes) ? Vote.YES : Vote.NO;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Repeated prepare port={} tx={} status={} vote={}", port, txId, current, again);
+                }
+                return again;
+            }
+            if (admit("PREPARE", txId, writes, successPerc)) {
+                if (isNoOp(writes)) {
+                    if (tx.getStatus() == TransactionStatus.IDLE && transactions.remove(txId, tx)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Prepare port={} tx={} vote=READ_ONLY", port, txId);
+                        }
+                        return Vote.READ_ONLY;
+                    }
+                } else if (lock(txId, writes) && tx.prepare(writes) && stage(txId, writes)) {
+                    try {
+                        // The YES vote is only sent once the prepared writes are durable
+                        long forceStart = System.nanoTime();
+                        log.logPrepare(txId, writes);
+                        metrics.logForce.record(System.nanoTime() - forceStart);
+                        status = TransactionStatus.PREPARE;
+                        lastPreparedTxId = txId;
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Prepare port={} tx={} vote=YES", port, txId);
+                        }
+                        return Vote.YES;
+                    } catch (IOException e) {
+                        logger.error("Could not log PREPARE port={} tx={}", port, txId, e);
+                    }
+                }
+            }
+
+            // Also a ROLLBACK that came first ends up here; one that comes later finds the writes staged
+            release(txId, writes);
+            tx.rollback();
+            status = TransactionStatus.ROLLBACK;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Prepare port={} tx={} vote=NO", port, txId);
+            }
+            return Vote.NO;
+        } finally {
+            tx.steps.unlock();
+        }
+    }
+
+    // Sole writer of a transaction: prepare and commit in one step with a single forced log record
+    boolean commitOnePhase(long txId, Map<Long, Integer> writes, int successPerc) {
+        int entered = enter();
+        try {
+            ParticipantTransaction tx = transactions.computeIfAbsent(txId, ParticipantTransaction::new);
+            tx.steps.lock();
+            try {
+                if (admit("ONE-PHASE COMMIT", txId, writes, successPerc) && lock(txId, writes)
+                    && tx.prepare(writes) && stage(txId, writes)) {
+                    try {
+                        long forceStart = System.nanoTime();
+                        log.logOnePhaseCommit(txId, writes);
+                        metrics.logForce.record(System.nanoTime() - forceStart);
+                        tx.commit();
+                        apply(txId, writes);
+                        statusListener.run();
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("One-phase commit port={} tx={} writes={}", port, txId, writes.size());
+                        }
+                        metrics.onePhaseCommits.increment();
+                        return true;
+                    } catch (IOException e) {
+                        logger.error("Could not log COMMIT port={} tx={}", port, txId, e);
+                    }
+                }
+
+                release(txId, writes);
+                tx.rollback();
+                status = TransactionStatus.ROLLBACK;
+                statusListener.run();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("One-phase commit failed port={} tx={}", port, txId);
+                }
+                metrics.onePhaseAborts.increment();
+                return false;
+            } finally {
+                tx.steps.unlock();
+            }
+        } finally {
+            exit(entered);
+        }
+    }
+
+    private boolean admit(String phase, long txId, Map<Long, Integer> writes, int successPerc) {
+        if (dataError) {
+            logger.warn("Data error active, rejecting port={} tx={}", port, txId);
+            return false;
+        }
+
+        // Gated, so a disabled event costs neither boxing nor varargs allocation
+        int randomValue = ThreadLocalRandom.current().nextInt(100);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} port={} tx={} writes={} successPerc={} random={}",
+                         phase, port, txId, writes.size(), successPerc, randomValue);
+        }
+        if (randomValue >= successPerc) {
+            return false;
+        }
+        return !timeoutError && !networkError && !dataError;
+    }
+
+    // Idempotent: returns true once the COMMIT is durable here, also for repeated or forgotten transactions;
+    // false for a rolled back one, which must not be acknowledged as committed
+    boolean commit(long txId) {
+        int entered = enter();
+        try {
+            if (timeoutError || networkError || dataError) {
+                return false;
+            }
+            ParticipantTransaction tx = transactions.get(txId);
+            if (tx == null) {
+                return true;
+            }
+            tx.steps.lock();
+            try {
+                if (tx.getStatus() != TransactionStatus.PREPARE) {
+                    if (tx.getStatus() == TransactionStatus.COMMIT) {
+                        return true;
+                    }
+                    logger.warn("Ignoring COMMIT port={} tx={} status={}", port, txId, tx.getStatus());
+                    return tx.getStatus() != TransactionStatus.ROLLBACK;
+                }
+                try {
+                    long forceStart = System.nanoTime();
+                    log.logCommit(txId);
+                    metrics.logForce.record(System.nanoTime() - forceStart);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not log COMMIT for tx " + txId, e);
+                }
+                tx.commit();
+                apply(txId, tx.getWrites());
+            } finally {
+                tx.steps.unlock();
+            }
+            statusListener.run();
+            metrics.commits.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Commit port={} tx={} writes={}", port, txId, tx.getWrites().size());
+            }
+            return true;
+        } finally {
+            exit(entered);
+        }
+    }
+
+    private boolean isNoOp(Map<Long, Integer> writes) {
+        for (Map.Entry<Long, Integer> write : writes.entrySet()) {
+            if (store.get(write.getKey()) != write.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Conflicting writers wait for at most the lock wait and then vote NO, well before the coordinator gives up
+    private boolean lock(long txId, Map<Long, Integer> writes) {
+        long start = System.nanoTime();
+        boolean locked = locks.acquire(txId, isolated(writes).keySet());
+        metrics.lockWait.record(System.nanoTime() - start);
+        if (!locked) {
+            metrics.conflicts.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Lock conflict port={} tx={}", port, txId);
+            }
+        }
+        return locked;
+    }
+
+    private boolean stage(long txId, Map<Long, Integer> writes) {
+        return store.stage(txId, isolated(writes));
+    }
+
+    // The single value is last-writer-wins, as it was before keyed writes: it takes neither a lock nor a
+    // provisional version, and is written at commit in commit order
+    private static Map<Long, Integer> isolated(Map<Long, Integer> writes) {
+        if (!writes.containsKey(Writes.VALUE_KEY)) {
+            return writes;
+        }
+        Map<Long, Integer> isolated = new HashMap<>(writes);
+        isolated.remove(Writes.VALUE_KEY);
+        return isolated;
+    }
+
+    private void release(long txId, Map<Long, Integer> writes) {
+        store.discard(txId, writes.keySet());
+        locks.release(txId, writes.keySet());
+    }
+
+    private void apply(long txId, Map<Long, Integer> writes) {
+        Integer value = writes.get(Writes.VALUE_KEY);
+        store.commit(txId, writes.keySet(), value == null ? Map.of() : Map.of(Writes.VALUE_KEY, value));
+        locks.release(txId, writes.keySet());
+        status = TransactionStatus.COMMIT;
+        if (value != null) {
+            currentValue = value;
+        }
+    }
+
+
+    void rollback(long txId) {
+        int entered = enter();
+        try {
+            ParticipantTransaction tx = transactions.computeIfAbsent(txId, ParticipantTransaction::new);
+            // Waits for a PREPARE in progress, which then either voted NO or left its writes staged here
+            tx.steps.lock();
+            try {
+                boolean wasPrepared = tx.getStatus() == TransactionStatus.PREPARE;
+                if (!tx.rollback()) {
+                    logger.warn("Ignoring ROLLBACK of committed tx port={} tx={}", port, txId);
+                    return;
+                }
+                if (wasPrepared) {
+                    release(txId, tx.getWrites());
+                    log.logRollback(txId);
+                    metrics.rollbacks.increment();
+                }
+            } finally {
+                tx.steps.unlock();
+            }
+            status = TransactionStatus.ROLLBACK;
+            statusListener.run();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Rollback port={} tx={}", port, txId);
+            }
+        } finally {
+            exit(entered);
+        }
+    }
+
+    // Committed values as of a commit sequence, null if it is no longer retained; never waits for prepared writes
+    VersionedStore.Snapshot read(List<Long> keys, long asOf) {
+        long start = System.nanoTime();
+        VersionedStore.Snapshot snapshot = store.read(keys, asOf);
+        metrics.read.record(System.nanoTime() - start);
+        return snapshot;
+    }
+
+    String applyError(String command) {
+        String reply = switch (command) {
+            case "ERROR1" -> {
+                timeoutError = true;
+                yield "ERROR1_SET";
+            }
+            case "ERROR2" -> {
+                networkError = true;
+                yield "ERROR2_SET";
+            }
+            case "ERROR3" -> {
+                dataError = true;
+                yield "ERROR3_SET";
+            }
+            case "ERROR_CLEAR" -> {
+                timeoutError = false;
+                networkError = false;
+                dataError = false;
+                yield "ERRORS_CLEARED";
+            }
+            default -> throw new IllegalArgumentException("Unknown error command: " + command);
+        };
+        statusListener.run();
+        return reply;
+    }
+
+    // GET_STATUS fields plus cumulative counters, keyed for STATUS_EVENT deltas
+    Map<String, String> statusSnapshot() {
+        Map<String, String> snapshot = new LinkedHashMap<>();
+        snapshot.put("status", status.name());
+        snapshot.put("err1", String.valueOf(timeoutError));
+        snapshot.put("err2", String.valueOf(networkError));
+        snapshot.put("err3", String.valueOf(dataError));
+        snapshot.put("value", currentValue == null ? "null" : currentValue.toString());
+        snapshot.put("commits", String.valueOf(metrics.commits.sum() + metrics.onePhaseCommits.sum()));
+        snapshot.put("aborts", String.valueOf(metrics.votesNo.sum() + metrics.rollbacks.sum()
+                                              + metrics.onePhaseAborts.sum()));
+        snapshot.put("prepares", String.valueOf(metrics.prepare.count()));
+        snapshot.put("prepareNanos", String.valueOf(metrics.prepare.sum()));
+        return snapshot;
+    }
+
+    String buildStatusPayload() {
+        return String.format(
+            "%s;ERR1=%s;ERR2=%s;ERR3=%s;VALUE=%s",
+            status.name(),
+            timeoutError,
+            networkError,
+            dataError,
+            currentValue == null ? "null" : currentValue
+        );
+    }
+}
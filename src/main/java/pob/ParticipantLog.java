@@ -0,0 +1,98 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Participant write-ahead log. PREPARE and COMMIT records are forced before the
+ * vote or ack is sent, sharing fsyncs with concurrent transactions through
+ * {@link GroupCommitLog}; ROLLBACK records are written lazily, since a lost
+ * rollback leaves the transaction in doubt and presumed abort resolves it.
+ * A one-phase commit is a single forced record carrying the writes.
+ * <p>
+ * A {@link ParticipantCheckpoint} replaces the segments before its
+ * {@code firstSegment}; recovery loads it and replays only the rest.
+ */
+class ParticipantLog implements Closeable {
+
+    private static final byte COMMIT = 2;
+    private static final byte ROLLBACK = 3;
+    private static final byte PREPARE_WRITES = 5;
+    private static final byte COMMIT_ONE_PHASE_WRITES = 6;
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    interface RecoveryHandler {
+
+        void restored(ParticipantCheckpoint checkpoint);
+
+        void prepared(long txId, Map<Long, Integer> writes);
+
+        void committed(long txId);
+
+        void rolledBack(long txId);
+
+        void committedOnePhase(long txId, Map<Long, Integer> writes);
+    }
+
+    private final Path dir;
+    private final GroupCommitLog log;
+
+    ParticipantLog(Path dir) throws IOException {
+        this.dir = dir;
+        this.log = new GroupCommitLog(dir, "participant", SEGMENT_SIZE);
+    }
+
+    void logPrepare(long txId, Map<Long, Integer> writes) throws IOException {
+        GroupCommitLog.await(log.append(PREPARE_WRITES, txId, Writes.toBytes(writes), true));
+    }
+
+    void logCommit(long txId) throws IOException {
+        GroupCommitLog.await(log.append(COMMIT, txId, EMPTY, true));
+    }
+
+    void logOnePhaseCommit(long txId, Map<Long, Integer> writes) throws IOException {
+        GroupCommitLog.await(log.append(COMMIT_ONE_PHASE_WRITES, txId, Writes.toBytes(writes), true));
+    }
+
+    void logRollback(long txId) {
+        log.append(ROLLBACK, txId, EMPTY, false);
+    }
+
+    // Starts a new segment unless the current one is empty; returns the segment later records go to
+    long rollOver() throws IOException {
+        return GroupCommitLog.await(log.rollOver());
+    }
+
+    void checkpoint(ParticipantCheckpoint checkpoint) throws IOException {
+        checkpoint.write(dir);
+        log.deleteSegmentsBefore(checkpoint.firstSegment());
+    }
+
+    // Returns the segment replay started from
+    long recover(RecoveryHandler handler) throws IOException {
+        ParticipantCheckpoint checkpoint = ParticipantCheckpoint.read(dir);
+        long firstSegment = 0;
+        if (checkpoint != null) {
+            handler.restored(checkpoint);
+            firstSegment = checkpoint.firstSegment();
+        }
+        log.replay((type, txId, payload) -> {
+            switch (type) {
+                case PREPARE_WRITES -> handler.prepared(txId, Writes.fromBytes(payload));
+                case COMMIT -> handler.committed(txId);
+                case ROLLBACK -> handler.rolledBack(txId);
+                case COMMIT_ONE_PHASE_WRITES -> handler.committedOnePhase(txId, Writes.fromBytes(payload));
+                default -> throw new IllegalStateException("Unknown participant log record type " + type);
+            }
+        }, firstSegment);
+        return firstSegment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
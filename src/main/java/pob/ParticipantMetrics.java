@@ -0,0 +1,57 @@
+package pob;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instruments of one participant: votes and decisions applied, PREPARE
+ * handling time and the forced log writes inside it.
+ */
+class ParticipantMetrics {
+
+    final Metrics registry;
+    final LongAdder votesYes;
+    final LongAdder votesNo;
+    final LongAdder votesReadOnly;
+    final LongAdder commits;
+    final LongAdder rollbacks;
+    final LongAdder onePhaseCommits;
+    final LongAdder onePhaseAborts;
+    // PREPAREs that could not lock their keys from another undecided transaction
+    final LongAdder conflicts;
+    // INQUIREs sent for in-doubt transactions, and the transactions their answers decided
+    final LongAdder inquiries;
+    final LongAdder resolvedByInquiry;
+    // From receiving PREPARE to having the vote, including the forced PREPARE record
+    final LatencyHistogram prepare;
+    final LatencyHistogram logForce;
+    final LatencyHistogram lockWait;
+    final LatencyHistogram read;
+    final LatencyHistogram checkpoint;
+
+    ParticipantMetrics(Metrics registry) {
+        this.registry = registry;
+        this.votesYes = registry.counter("pob_participant_votes_total", "vote=\"yes\"");
+        this.votesNo = registry.counter("pob_participant_votes_total", "vote=\"no\"");
+        this.votesReadOnly = registry.counter("pob_participant_votes_total", "vote=\"read_only\"");
+        this.commits = registry.counter("pob_participant_commits_total", "");
+        this.rollbacks = registry.counter("pob_participant_rollbacks_total", "");
+        this.onePhaseCommits = registry.counter("pob_participant_one_phase_total", "result=\"committed\"");
+        this.onePhaseAborts = registry.counter("pob_participant_one_phase_total", "result=\"aborted\"");
+        this.conflicts = registry.counter("pob_participant_write_conflicts_total", "");
+        this.inquiries = registry.counter("pob_participant_inquiries_total", "");
+        this.resolvedByInquiry = registry.counter("pob_participant_resolved_by_inquiry_total", "");
+        this.prepare = registry.histogram("pob_participant_prepare_seconds", "");
+        this.logForce = registry.histogram("pob_participant_log_force_seconds", "");
+        this.lockWait = registry.histogram("pob_participant_lock_wait_seconds", "");
+        this.read = registry.histogram("pob_participant_read_seconds", "");
+        this.checkpoint = registry.histogram("pob_participant_checkpoint_seconds", "");
+    }
+
+    void vote(Vote vote) {
+        switch (vote) {
+            case YES -> votesYes.increment();
+            case NO -> votesNo.increment();
+            case READ_ONLY -> votesReadOnly.increment();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package pob;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * One row per cluster member, added and removed as members join and leave
+ * (on the EDT). Status events arrive on subscriber
+ * threads and are only merged into a per-row pending map; the EDT folds them
+ * in with {@link #applyPending()} on a timer and fires one update for all the
+ * rows that changed, so repaints stay bounded no matter how fast events come.
+ * The JTable itself only paints the rows that are visible.
+ */
+class ParticipantTableModel extends AbstractTableModel {
+
+    interface ErrorToggle {
+        void toggled(InetSocketAddress member, String errorType, boolean enabled);
+    }
+
+    static final int STATUS_COLUMN = 2;
+    static final int FIRST_ERROR_COLUMN = 4;
+    static final int FIRST_SPARKLINE_COLUMN = 8;
+    static final String OFFLINE = "OFFLINE";
+
+    private static final String[] COLUMNS = {
+        "Host", "Port", "Status", "Value", "Timeout", "Network", "Data", "Phase",
+        "Throughput", "Abort rate", "Prepare latency"
+    };
+    private static final String[] ERROR_TYPES = {"ERROR1", "ERROR2", "ERROR3"};
+    private static final String[] ERROR_FIELDS = {"err1", "err2", "err3"};
+    private static final int HISTORY = 60;
+    private static final long NETWORK_ERROR_MS = 10000;
+
+    static final class Row {
+
+        final InetSocketAddress address;
+        // Position in the table, kept up to date on the EDT as rows are removed
+        private int index;
+        // Set on the EDT when the member leaves; its subscriber thread then stops
+        volatile boolean removed = false;
+
+        // Written by the subscriber thread, drained on the EDT
+        private final Map<String, String> pending = new HashMap<>();
+        private boolean pendingDisconnect = false;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        // EDT only from here on
+        private final Map<String, String> status = new HashMap<>();
+        private boolean connected = false;
+        private long offlineUntil = 0;
+        private String phase = "";
+        private final Sparkline throughput = new Sparkline(HISTORY, "%.0f tx/s");
+        private final Sparkline abortRate = new Sparkline(HISTORY, "%.1f%%");
+        private final Sparkline latency = new Sparkline(HISTORY, "%.2f ms");
+        private long lastCommits = -1;
+        private long lastAborts;
+        private long lastPrepares;
+        private long lastPrepareNanos;
+
+        Row(InetSocketAddress address, int index) {
+            this.address = address;
+            this.index = index;
+        }
+
+        private long counter(String field) {
+            String value = status.get(field);
+            return value == null ? 0 : Long.parseLong(value);
+        }
+    }
+
+    // EDT only
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<InetSocketAddress, Row> byAddress = new HashMap<>();
+    private final Queue<Row> dirtyRows = new ConcurrentLinkedQueue<>();
+    private final ErrorToggle errorToggle;
+
+    ParticipantTableModel(ErrorToggle errorToggle) {
+        this.errorToggle = errorToggle;
+    }
+
+    // EDT: returns null if the member is already shown
+    Row add(InetSocketAddress member) {
+        if (byAddress.containsKey(member)) {
+            return null;
+        }
+        Row row = new Row(member, rows.size());
+        rows.add(row);
+        byAddress.put(member, row);
+        fireTableRowsInserted(row.index, row.index);
+        return row;
+    }
+
+    // EDT
+    void remove(InetSocketAddress member) {
+        Row row = byAddress.remove(member);
+        if (row == null) {
+            return;
+        }
+        row.removed = true;
+        rows.remove(row.index);
+        for (int i = row.index; i < rows.size(); i++) {
+            rows.get(i).index = i;
+        }
+        fireTableRowsDeleted(row.index, row.index);
+    }
+
+    // Any thread: merges fields of one STATUS_EVENT, applied on the next applyPending()
+    void offer(Row row, Map<String, String> changes) {
+        synchronized (row.pending) {
+            row.pending.putAll(changes);
+            row.pendingDisconnect = false;
+        }
+        markDirty(row);
+    }
+
+    // Any thread: the subscription dropped, the participant shows OFFLINE until it is back
+    void disconnected(Row row) {
+        synchronized (row.pending) {
+            row.pending.clear();
+            row.pendingDisconnect = true;
+        }
+        markDirty(row);
+    }
+
+    private void markDirty(Row row) {
+        if (row.dirty.compareAndSet(false, true)) {
+            dirtyRows.add(row);
+        }
+    }
+
+    // EDT: folds pending events into the rows and fires a single update for the changed range
+    void applyPending() {
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        Row r;
+        while ((r = dirtyRows.poll()) != null) {
+            r.dirty.set(false);
+            if (r.removed) {
+                continue;
+            }
+            synchronized (r.pending) {
+                if (r.pendingDisconnect) {
+                    r.status.clear();
+                    r.connected = false;
+                    r.lastCommits = -1;
+                } else {
+                    r.status.putAll(r.pending);
+                    r.connected = true;
+                }
+                r.pending.clear();
+            }
+            first = Math.min(first, r.index);
+            last = Math.max(last, r.index);
+        }
+
+        // Symulowany błąd sieci mija po czasie; serwer dostaje wtedy ERROR_CLEAR
+        long now = System.currentTimeMillis();
+        for (Row row : rows) {
+            if (row.offlineUntil != 0 && now >= row.offlineUntil) {
+                row.offlineUntil = 0;
+                row.phase = "";
+                errorToggle.toggled(row.address, "ERROR2", false);
+                first = Math.min(first, row.index);
+                last = Math.max(last, row.index);
+            }
+        }
+
+        if (last >= 0) {
+            fireTableRowsUpdated(first, last);
+        }
+    }
+
+    // EDT: appends one sample per row to the sparklines from the counter deltas since the last call
+    void sample(double intervalSeconds) {
+        for (Row r : rows) {
+            long commits = r.counter("commits");
+            long aborts = r.counter("aborts");
+            long prepares = r.counter("prepares");
+            long prepareNanos = r.counter("prepareNanos");
+            if (r.connected && r.lastCommits >= 0) {
+                long finished = (commits - r.lastCommits) + (aborts - r.lastAborts);
+                long preparesDelta = prepares - r.lastPrepares;
+                r.throughput.add((float) (finished / intervalSeconds));
+                r.abortRate.add(finished == 0 ? 0 : 100f * (aborts - r.lastAborts) / finished);
+                r.latency.add(preparesDelta == 0 ? 0 : (prepareNanos - r.lastPrepareNanos) / 1e6f / preparesDelta);
+            } else {
+                r.throughput.add(0);
+                r.abortRate.add(0);
+                r.latency.add(0);
+            }
+            r.lastCommits = r.connected ? commits : -1;
+            r.lastAborts = aborts;
+            r.lastPrepares = prepares;
+            r.lastPrepareNanos = prepareNanos;
+        }
+        if (!rows.isEmpty()) {
+            fireTableRowsUpdated(0, rows.size() - 1);
+        }
+    }
+
+    // EDT: local view of a transaction run, until the participant's next status event
+    void showPhase(InetSocketAddress member, String status, String phase) {
+        Row r = byAddress.get(member);
+        if (r == null) {
+            return;
+        }
+        r.status.put("status", status);
+        r.phase = phase;
+        fireTableRowsUpdated(r.index, r.index);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        if (column == 1) {
+            return Integer.class;
+        }
+        if (column >= FIRST_ERROR_COLUMN && column < FIRST_ERROR_COLUMN + ERROR_TYPES.length) {
+            return Boolean.class;
+        }
+        return column >= FIRST_SPARKLINE_COLUMN ? Sparkline.class : String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return column >= FIRST_ERROR_COLUMN && column < FIRST_ERROR_COLUMN + ERROR_TYPES.length
+            && rows.get(row).connected;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Row r = rows.get(row);
+        return switch (column) {
+            case 0 -> r.address.getHostString();
+            case 1 -> r.address.getPort();
+            case STATUS_COLUMN -> !r.connected || r.offlineUntil != 0 || "true".equals(r.status.get("err2"))
+                ? OFFLINE
+                : r.status.getOrDefault("status", "");
+            case 3 -> r.status.getOrDefault("value", "");
+            case 4, 5, 6 -> column == 5 && r.offlineUntil != 0
+                || "true".equals(r.status.get(ERROR_FIELDS[column - FIRST_ERROR_COLUMN]));
+            case 7 -> r.phase;
+            case 8 -> r.throughput;
+            case 9 -> r.abortRate;
+            case 10 -> r.latency;
+            default -> null;
+        };
+    }
+
+    @Override
+    public void setValueAt(Object value, int row, int column) {
+        Row r = rows.get(row);
+        String errorType = ERROR_TYPES[column - FIRST_ERROR_COLUMN];
+        boolean enabled = (Boolean) value;
+        // The checkbox follows the participant's next status event; the network error is simulated locally
+        if (errorType.equals("ERROR2")) {
+            r.offlineUntil = enabled ? System.currentTimeMillis() + NETWORK_ERROR_MS : 0;
+            r.phase = enabled ? "Server offline" : "";
+        } else {
+            r.status.put(ERROR_FIELDS[column - FIRST_ERROR_COLUMN], String.valueOf(enabled));
+        }
+        errorToggle.toggled(r.address, errorType, enabled);
+        fireTableRowsUpdated(row, row);
+    }
+}
@@ -0,0 +1,71 @@
+package pob;
+
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+class ParticipantTransaction {
+
+    final long txId;
+    // Held for a whole PREPARE, COMMIT or ROLLBACK, so locking, staging and logging for one never
+    // interleave with another; not a monitor, since the holder waits for key locks and fsyncs
+    final ReentrantLock steps = new ReentrantLock();
+    private TransactionStatus status = TransactionStatus.IDLE;
+    private Map<Long, Integer> writes = Map.of();
+    private long finishedAtMillis = 0;
+    private long preparedAtNanos;
+
+    ParticipantTransaction(long txId) {
+        this.txId = txId;
+    }
+
+    synchronized TransactionStatus getStatus() {
+        return status;
+    }
+
+    synchronized Map<Long, Integer> getWrites() {
+        return writes;
+    }
+
+    synchronized boolean isFinished() {
+        return finishedAtMillis != 0;
+    }
+
+    synchronized boolean isFinishedBefore(long millis) {
+        return finishedAtMillis != 0 && finishedAtMillis < millis;
+    }
+
+    synchronized boolean isPreparedBefore(long nanos) {
+        return status == TransactionStatus.PREPARE && preparedAtNanos - nanos < 0;
+    }
+
+    synchronized boolean prepare(Map<Long, Integer> writes) {
+        if (status != TransactionStatus.IDLE) {
+            return false;
+        }
+        this.writes = writes;
+        this.status = TransactionStatus.PREPARE;
+        this.preparedAtNanos = System.nanoTime();
+        return true;
+    }
+
+    synchronized boolean commit() {
+        if (status != TransactionStatus.PREPARE) {
+            return false;
+        }
+        status = TransactionStatus.COMMIT;
+        finishedAtMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    // A rollback that arrives before PREPARE leaves a tombstone, so the late PREPARE votes NO
+    synchronized boolean rollback() {
+        if (status == TransactionStatus.COMMIT) {
+            return false;
+        }
+        if (status != TransactionStatus.ROLLBACK) {
+            status = TransactionStatus.ROLLBACK;
+            finishedAtMillis = System.currentTimeMillis();
+        }
+        return true;
+    }
+}
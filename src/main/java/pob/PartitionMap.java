@@ -0,0 +1,93 @@
+package pob;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Consistent-hashing ring from keys to the participants that own them. Every
+ * member is placed on the ring at {@value #VIRTUAL_NODES} points; a key is
+ * owned by the first {@code replicas} distinct members clockwise from its
+ * hash. Adding or removing a member only moves the keys next to its points,
+ * about 1/n of them. Immutable; the coordinator builds a new one when members
+ * join or leave.
+ */
+final class PartitionMap {
+
+    static final String REPLICAS_PROPERTY = "pob.replicas";
+
+    private static final int VIRTUAL_NODES = 64;
+
+    // Ring points sorted by hash, with the member at each point
+    private final long[] points;
+    private final InetSocketAddress[] owners;
+    private final int replicas;
+
+    PartitionMap(Collection<InetSocketAddress> members, int replicas) {
+        this.replicas = Math.min(replicas, members.size());
+        long[] hashes = new long[members.size() * VIRTUAL_NODES];
+        InetSocketAddress[] byHash = new InetSocketAddress[hashes.length];
+        Integer[] order = new Integer[hashes.length];
+        int i = 0;
+        for (InetSocketAddress member : members) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[i] = pointHash(member, v);
+                byHash[i] = member;
+                order[i] = i;
+                i++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[hashes.length];
+        this.owners = new InetSocketAddress[hashes.length];
+        for (int p = 0; p < order.length; p++) {
+            points[p] = hashes[order[p]];
+            owners[p] = byHash[order[p]];
+        }
+    }
+
+    static int replicasFromConfig() {
+        return Math.max(1, Integer.getInteger(REPLICAS_PROPERTY, 1));
+    }
+
+    // The key's owners, primary first; empty only when there are no members
+    List<InetSocketAddress> owners(long key) {
+        List<InetSocketAddress> result = new ArrayList<>(replicas);
+        if (points.length == 0) {
+            return result;
+        }
+        int start = Arrays.binarySearch(points, mix(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int p = 0; p < points.length && result.size() < replicas; p++) {
+            InetSocketAddress owner = owners[(start + p) % points.length];
+            if (!result.contains(owner)) {
+                result.add(owner);
+            }
+        }
+        return result;
+    }
+
+    // Stable across JVMs, so every coordinator builds the same ring for the same members
+    private static long pointHash(InetSocketAddress member, int virtualNode) {
+        CRC32C crc = new CRC32C();
+        crc.update((member.getHostString() + ":" + member.getPort() + "#" + virtualNode)
+                       .getBytes(StandardCharsets.UTF_8));
+        return mix(crc.getValue());
+    }
+
+    // 64-bit finalizer of MurmurHash3, so neighbouring keys land far apart on the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
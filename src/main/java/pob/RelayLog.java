@@ -0,0 +1,108 @@
+package pob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Log of a {@link SubCoordinator}: which children voted YES in a subtree,
+ * forced before the subtree's YES goes up, so the parent's decision can still
+ * be relayed to them after a restart. An END record is written lazily once
+ * the children have acknowledged the decision. The outcome itself is not
+ * recorded here; it is whatever the parent decides.
+ * <p>
+ * Only the in-doubt subtrees matter after a restart, so {@link #compact()}
+ * copies their PREPARED records to a fresh segment and drops the older ones.
+ */
+class RelayLog implements Closeable {
+
+    private static final byte PREPARED = 1;
+    private static final byte END = 2;
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final GroupCommitLog log;
+    // Subtrees waiting for the parent's decision, with the children to relay it to
+    private final ConcurrentHashMap<Long, List<InetSocketAddress>> inDoubt = new ConcurrentHashMap<>();
+    // Whether anything was logged since the last compaction
+    private volatile boolean written;
+
+    RelayLog(Path dir) throws IOException {
+        this.log = new GroupCommitLog(dir, "relay", SEGMENT_SIZE);
+        try {
+            log.replay((type, txId, payload) -> {
+                switch (type) {
+                    case PREPARED -> inDoubt.put(txId, DecisionLog.decode(payload));
+                    case END -> inDoubt.remove(txId);
+                    default -> throw new IllegalStateException("Unknown relay log record type " + type);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    // Known before the record is queued, so a compaction rolling over behind it still copies it
+    void logPrepared(long txId, List<InetSocketAddress> children) throws IOException {
+        inDoubt.put(txId, children);
+        written = true;
+        try {
+            GroupCommitLog.await(log.append(PREPARED, txId, DecisionLog.encode(children), true));
+        } catch (IOException | RuntimeException e) {
+            inDoubt.remove(txId);
+            throw e;
+        }
+    }
+
+    // Queued under the lock, so an END never lands before a copy of its PREPARED
+    synchronized void logEnd(long txId) {
+        if (inDoubt.remove(txId) != null) {
+            written = true;
+            log.append(END, txId, EMPTY, false);
+        }
+    }
+
+    /**
+     * Rewrites the log as its in-doubt subtrees: they are copied, forced,
+     * past a roll-over and the segments before it are deleted. Does nothing
+     * if nothing was logged since the last compaction.
+     */
+    void compact() throws IOException {
+        if (!written) {
+            return;
+        }
+        written = false;
+        try {
+            long firstSegment = GroupCommitLog.await(log.rollOver());
+            List<CompletableFuture<Void>> copies = new ArrayList<>();
+            synchronized (this) {
+                inDoubt.forEach((txId, children) ->
+                    copies.add(log.append(PREPARED, txId, DecisionLog.encode(children), true)));
+            }
+            for (CompletableFuture<Void> copy : copies) {
+                GroupCommitLog.await(copy);
+            }
+            log.deleteSegmentsBefore(firstSegment);
+        } catch (IOException | RuntimeException e) {
+            written = true;
+            throw e;
+        }
+    }
+
+    Map<Long, List<InetSocketAddress>> inDoubt() {
+        return new LinkedHashMap<>(inDoubt);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
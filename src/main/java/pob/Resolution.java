@@ -0,0 +1,35 @@
+package pob;
+
+/**
+ * Coordinator's answer to an in-doubt inquiry. A participant that has voted
+ * YES and not heard the decision sends all such transactions in one
+ * {@code V2:INQUIRE:<reqId>:<txId>;...} on a connection the coordinator
+ * heartbeats, and gets {@code V2:OUTCOMES:<reqId>:<txId>,<code>;...} back.
+ */
+public enum Resolution {
+    COMMIT('C'),
+    // Presumed abort: a transaction of this coordinator without a COMMIT record
+    ABORT('A'),
+    // The round is still running, the decision follows as usual
+    PENDING('P'),
+    // Not a transaction of this coordinator
+    UNKNOWN('U');
+
+    // Argument of the coordinator's heartbeat PING, which tells the participant it may inquire on that connection
+    public static final String HEARTBEAT = "COORDINATOR";
+
+    public final char code;
+
+    Resolution(char code) {
+        this.code = code;
+    }
+
+    public static Resolution fromCode(String code) {
+        for (Resolution resolution : values()) {
+            if (code.length() == 1 && resolution.code == code.charAt(0)) {
+                return resolution;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resolution code: " + code);
+    }
+}
@@ -1,173 +1,461 @@
 package pob;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Random;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class ServerMain {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-    private static TransactionStatus status = TransactionStatus.IDLE;
-    private static Integer currentValue = null;
-    private static boolean prepared = false;
+public class ServerMain implements Closeable {
 
-    // BŁĘDY
-    private static volatile boolean timeoutError = false;
-    private static volatile boolean networkError = false;
-    private static volatile boolean dataError = false;
+    private static final Logger logger = LoggerFactory.getLogger(ServerMain.class);
 
-    private static final Random random = new Random();
+    private static final long FINISHED_TX_RETENTION_MS = 60_000;
+    static final String CHECKPOINT_INTERVAL_PROPERTY = "pob.checkpointIntervalMs";
+
+    private static final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final ServerSocket serverSocket;
+    private final ParticipantEngine engine;
+    private final ParticipantLog log;
+    private final RelayLog relayLog;
+    private final SubCoordinator subCoordinator;
+    private final InDoubtResolver inDoubtResolver;
+    private final Metrics metrics;
+    private final ScheduledExecutorService housekeeping;
+    // Own thread, so writing a large checkpoint does not hold up health checks and status events
+    private final ScheduledExecutorService checkpointer;
+    private final StatusPublisher statusPublisher;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    private ServerMain(ServerSocket serverSocket, ParticipantLog log, RelayLog relayLog) throws IOException {
+        this.serverSocket = serverSocket;
+        this.log = log;
+        this.relayLog = relayLog;
+        this.metrics = new Metrics("type=Participant,port=" + serverSocket.getLocalPort());
+        ParticipantMetrics participantMetrics = new ParticipantMetrics(metrics);
+        this.engine = new ParticipantEngine(serverSocket.getLocalPort(), log, participantMetrics);
+        metrics.gauge("pob_participant_connections", "", clients::size);
+        engine.recover();
+        this.housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "participant-housekeeping");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeping.scheduleWithFixedDelay(() -> engine.expireFinished(FINISHED_TX_RETENTION_MS),
+                                            10, 10, TimeUnit.SECONDS);
+        this.statusPublisher = new StatusPublisher(engine, housekeeping);
+        metrics.gauge("pob_participant_status_subscribers", "", statusPublisher::subscriberCount);
+        this.subCoordinator = new SubCoordinator(serverSocket.getLocalPort(), engine, relayLog, metrics, housekeeping);
+        metrics.gauge("pob_subtrees_in_doubt", "", subCoordinator::inDoubtCount);
+        this.inDoubtResolver = new InDoubtResolver(serverSocket.getLocalPort(), engine, subCoordinator,
+                                                   participantMetrics);
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "participant-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        long checkpointIntervalMs = Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 30_000);
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointIntervalMs, checkpointIntervalMs,
+                                            TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpoint() {
+        try {
+            engine.checkpoint();
+            relayLog.compact();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Checkpoint failed port={}", getPort(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.out.println("Usage: java pob.ServerMain <port>");
+            System.out.println("Usage: java pob.ServerMain <port> [dataDir]");
             System.exit(1);
         }
 
         int port = Integer.parseInt(args[0]);
+        Path dataDir = Path.of(args.length > 1 ? args[1] : "data/server-" + port);
+        open(port, dataDir).serve();
+    }
+
+    /**
+     * Binds the participant and recovers its log without accepting connections
+     * yet, so it can also be run in-process with {@link #serveInBackground()}.
+     * Port 0 picks a free port, see {@link #getPort()}.
+     */
+    public static ServerMain open(int port, Path dataDir) throws IOException {
         ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server starting on port " + port);
+        ServerMain server;
+        try {
+            server = new ServerMain(serverSocket, new ParticipantLog(dataDir), new RelayLog(dataDir));
+        } catch (IOException | RuntimeException e) {
+            serverSocket.close();
+            throw e;
+        }
+        logger.info("Server starting port={}", server.getPort());
+        return server;
+    }
+
+    public ServerMain serveInBackground() {
+        Thread acceptor = new Thread(this::serve, "participant-" + getPort() + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
 
-        while (true) {
+    public void serve() {
+        int port = getPort();
+        while (!serverSocket.isClosed()) {
             try {
-                Socket coordinator = serverSocket.accept();
-                handleConnection(coordinator, port);
+                Socket client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+                clients.add(client);
+                workers.execute(() -> {
+                    handleConnection(client, engine, statusPublisher, subCoordinator, inDoubtResolver, port);
+                    clients.remove(client);
+                });
             } catch (Exception e) {
-                System.out.println("Error accepting connection: " + e.getMessage());
+                if (!serverSocket.isClosed()) {
+                    logger.warn("Error accepting connection port={}: {}", port, e.getMessage());
+                }
             }
         }
     }
 
-    private static void handleConnection(Socket coordinator, int port) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(coordinator.getInputStream()));
-            PrintWriter out = new PrintWriter(coordinator.getOutputStream(), true)) {
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+        subCoordinator.close();
+        housekeeping.shutdownNow();
+        // A checkpoint in progress finishes, so the log is not closed under it
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.close();
+        log.close();
+        relayLog.close();
+    }
+
+    private static void handleConnection(Socket client, ParticipantEngine engine, StatusPublisher statusPublisher,
+                                         SubCoordinator subCoordinator, InDoubtResolver resolver, int port) {
+        try (client;
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true)) {
 
-            if (networkError) {
-                coordinator.close();
-                return;
+            try {
+                // Transakcja przypisana do tego połączenia w protokole V1 (PREPARE, a potem COMMIT/ROLLBACK)
+                long connectionTxId = -1;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (Message.isVersioned(line)) {
+                        Message message;
+                        try {
+                            message = Message.parse(line);
+                        } catch (IllegalArgumentException e) {
+                            logger.warn("Invalid message port={}: {}", port, e.getMessage());
+                            continue;
+                        }
+                        if (engine.networkError && message.type != MessageType.ERROR) {
+                            return;
+                        }
+                        // Each message runs on its own virtual thread so a slow PREPARE does not
+                        // hold up decisions for other transactions multiplexed on this connection.
+                        workers.execute(() -> handleMessage(message, engine, statusPublisher, subCoordinator, resolver, port,
+                                                            out));
+                        continue;
+                    }
+
+                    if (engine.networkError && !line.startsWith("ERROR")) {
+                        return;
+                    }
+
+                    if (line.startsWith("PREPARE:")) {
+                        connectionTxId = engine.newLocalTransactionId();
+                        handlePrepareCommand(line, connectionTxId, engine, port, out);
+                    } else if (line.equals("GET_STATUS")) {
+                        out.println("STATUS:" + engine.buildStatusPayload());
+                    } else if (line.startsWith("ERROR")) {
+                        handleErrorCommand(line, engine, out);
+                    } else {
+                        long txId = connectionTxId != -1 ? connectionTxId : engine.getLastPreparedTxId();
+                        handleOtherCommands(line, txId, engine);
+                    }
+                }
+            } finally {
+                statusPublisher.unsubscribe(out);
+            }
+
+        } catch (Exception e) {
+            logger.warn("Error handling connection port={}: {}", port, e.getMessage());
+        }
+    }
+
+    private static void handleMessage(Message message, ParticipantEngine engine, StatusPublisher statusPublisher,
+                                      SubCoordinator subCoordinator, InDoubtResolver resolver, int port,
+                                      PrintWriter out) {
+        long txId = message.txId;
+        switch (message.type) {
+            case PREPARE -> handlePrepareMessage(message, engine, subCoordinator, port, out);
+            // Potwierdzenie dopiero, gdy decyzję przyjęło całe poddrzewo
+            case COMMIT -> {
+                try {
+                    if (engine.commit(txId)) {
+                        subCoordinator.decide(txId, true)
+                            .thenRun(() -> out.println(Message.of(MessageType.ACK_COMMIT, txId).encode()));
+                    }
+                } catch (UncheckedIOException e) {
+                    // Bez potwierdzenia - koordynator ponowi decyzję
+                    logger.error("Could not apply COMMIT port={}: {}", port, e.getMessage());
+                }
+            }
+            case ROLLBACK -> {
+                engine.rollback(txId);
+                subCoordinator.decide(txId, false)
+                    .thenRun(() -> out.println(Message.of(MessageType.ACK_ROLLBACK, txId).encode()));
             }
+            case COMMIT_ONE_PHASE -> handleOnePhaseCommit(message, engine, port, out);
+            case PREPARE_BATCH -> handlePrepareBatch(message, engine, port, out);
+            case DECIDE_BATCH -> handleDecideBatch(message, engine, subCoordinator, port, out);
+            case PING -> {
+                out.println(Message.of(MessageType.PONG, txId).encode());
+                // A coordinator's heartbeat: the connection it can be asked about in-doubt transactions on
+                if (message.argCount() > 0 && Resolution.HEARTBEAT.equals(message.arg(0))) {
+                    resolver.heartbeat(out);
+                }
+            }
+            case OUTCOMES -> resolver.outcomes(message);
+            case READ -> handleRead(message, engine, port, out);
+            case GET_STATUS -> out.println(Message.of(MessageType.STATUS, txId, engine.buildStatusPayload()).encode());
+            // Status changes are pushed as STATUS_EVENTs on this connection until it closes
+            case SUBSCRIBE -> statusPublisher.subscribe(txId, out);
+            case ERROR -> {
+                try {
+                    out.println(Message.of(MessageType.ERROR_ACK, txId, engine.applyError(message.arg(0))).encode());
+                } catch (RuntimeException e) {
+                    logger.warn("Invalid error command port={}: {}", port, message);
+                }
+            }
+            default -> logger.warn("Unexpected message port={}: {}", port, message);
+        }
+    }
 
-            String line = in.readLine();
-            if (line == null) {
+    /**
+     * {@code V2:READ:<reqId>:<key>,...[:<asOf>]} is answered with
+     * {@code V2:VALUE:<reqId>:<asOf>:<key>,<value>,<version>;...}, all values
+     * as of the same commit sequence; the value is empty for a key without one.
+     * Without {@code asOf} the latest commit is read. An {@code asOf} of -1 in
+     * the reply means the requested snapshot is no longer retained.
+     */
+    private static void handleRead(Message message, ParticipantEngine engine, int port, PrintWriter out) {
+        List<Long> keys = new ArrayList<>();
+        long asOf;
+        try {
+            for (String key : message.arg(0).split(Message.FIELD_SEPARATOR)) {
+                keys.add(Long.parseLong(key));
+            }
+            asOf = message.argCount() > 1 ? Long.parseLong(message.arg(1)) : VersionedStore.LATEST;
+        } catch (RuntimeException e) {
+            logger.warn("Invalid READ port={}: {}", port, message);
+            return;
+        }
+        VersionedStore.Snapshot snapshot = engine.read(keys, asOf);
+        if (snapshot == null) {
+            out.println(Message.of(MessageType.VALUE, message.txId, -1, "").encode());
+            return;
+        }
+        StringBuilder reads = new StringBuilder();
+        for (VersionedStore.Versioned read : snapshot.reads()) {
+            if (!reads.isEmpty()) {
+                reads.append(Message.ENTRY_SEPARATOR);
+            }
+            reads.append(read.key()).append(Message.FIELD_SEPARATOR)
+                .append(read.value() == VersionedStore.ABSENT ? "" : String.valueOf(read.value()))
+                .append(Message.FIELD_SEPARATOR).append(read.version());
+        }
+        out.println(Message.of(MessageType.VALUE, message.txId, snapshot.asOf(), reads).encode());
+    }
+
+    private static void handlePrepareMessage(Message message, ParticipantEngine engine, SubCoordinator subCoordinator,
+                                             int port, PrintWriter out) {
+        long txId = message.txId;
+        try {
+            if (engine.timeoutError) {
+                logger.warn("Timeout error active, delaying response port={}", port);
+                Thread.sleep(10000);
                 return;
             }
 
-            if (line.startsWith("PREPARE:")) {
-                handlePrepareCommand(line, port, out);
-            } else if (line.equals("GET_STATUS")) {
-                out.println(buildStatusResponse());
-            } else if (line.startsWith("ERROR")) {
-                handleErrorCommand(line, out);
-            } else {
-                handleOtherCommands(line, port, out);
+            if (message.argCount() != 2 && message.argCount() != 5) {
+                logger.warn("Invalid command format port={}", port);
+                throw new IllegalArgumentException("Invalid PREPARE message format");
             }
 
+            // Pusta wartość oznacza operację tylko do odczytu
+            Map<Long, Integer> writes = Writes.parse(message.arg(0));
+            // Z poddrzewem (fanout, limit czasu, potomkowie) serwer głosuje w imieniu całego poddrzewa
+            Vote vote = message.argCount() == 2
+                ? engine.prepare(txId, writes, message.intArg(1))
+                : subCoordinator.prepare(txId, writes, message.intArg(1), message.intArg(2),
+                                         Long.parseLong(message.arg(3)), CommitTree.descendants(message));
+            out.println(Message.of(vote.messageType, txId).encode());
+
         } catch (Exception e) {
-            System.out.println("Error handling connection on port " + port + ": " + e.getMessage());
+            engine.rollback(txId);
+            out.println(Message.of(MessageType.VOTE_NO, txId).encode());
+            logger.warn("Error in PREPARE port={} tx={}: {}", port, txId, e.getMessage());
         }
     }
 
-    private static void handlePrepareCommand(String line, int port, PrintWriter out) {
+    private static void handleOnePhaseCommit(Message message, ParticipantEngine engine, int port, PrintWriter out) {
+        long txId = message.txId;
         try {
-            if (timeoutError) {
-                System.out.println("Server " + port + ": Timeout error active, delaying response...");
+            if (engine.timeoutError) {
+                logger.warn("Timeout error active, delaying response port={}", port);
                 Thread.sleep(10000);
                 return;
             }
 
-            if (dataError) {
-                System.out.println("Server " + port + ": Data error active, rejecting...");
-                throw new IllegalArgumentException("Data format error");
+            boolean committed = engine.commitOnePhase(txId, Writes.parse(message.arg(0)), message.intArg(1));
+            out.println(Message.of(committed ? MessageType.COMMITTED : MessageType.ABORTED, txId).encode());
+
+        } catch (Exception e) {
+            engine.rollback(txId);
+            out.println(Message.of(MessageType.ABORTED, txId).encode());
+            logger.warn("Error in one-phase COMMIT port={} tx={}: {}", port, txId, e.getMessage());
+        }
+    }
+
+    // Głosy dla wszystkich transakcji z paczki wysyłane są w jednej odpowiedzi VOTES
+    private static void handlePrepareBatch(Message message, ParticipantEngine engine, int port, PrintWriter out) {
+        try {
+            if (engine.timeoutError) {
+                logger.warn("Timeout error active, delaying response port={}", port);
+                Thread.sleep(10000);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        StringBuilder votes = new StringBuilder();
+        for (String[] entry : message.entries(0)) {
+            long entryTxId = Long.parseLong(entry[0]);
+            Vote vote;
+            try {
+                vote = engine.prepare(entryTxId, Writes.parse(entry[1]), Integer.parseInt(entry[2]));
+            } catch (RuntimeException e) {
+                engine.rollback(entryTxId);
+                vote = Vote.NO;
+                logger.warn("Error in PREPARE port={} tx={}: {}", port, entryTxId, e.getMessage());
+            }
+            if (!votes.isEmpty()) {
+                votes.append(Message.ENTRY_SEPARATOR);
+            }
+            votes.append(entryTxId).append(Message.FIELD_SEPARATOR).append(vote.code);
+        }
+        out.println(Message.of(MessageType.VOTES, message.txId, votes).encode());
+    }
+
+    private static void handlePrepareCommand(String line, long txId, ParticipantEngine engine, int port,
+                                             PrintWriter out) {
+        try {
+            if (engine.timeoutError) {
+                logger.warn("Timeout error active, delaying response port={}", port);
+                Thread.sleep(10000);
+                return;
             }
 
             String[] parts = line.split(":");
             if (parts.length != 3) {
-                System.out.println("Server " + port + ": Invalid command format");
+                logger.warn("Invalid command format port={}", port);
                 throw new IllegalArgumentException("Invalid PREPARE command format");
             }
 
             int value = Integer.parseInt(parts[1]);
             int successPerc = Integer.parseInt(parts[2]);
 
-            System.out.println("Server " + port + ": Processing PREPARE");
-            System.out.println("Value: " + value);
-            System.out.println("Success %: " + successPerc);
-
-            int randomValue = random.nextInt(100);
-            System.out.println("Random value generated: " + randomValue);
-            System.out.println("Success threshold: " + successPerc);
-
-            if (randomValue < successPerc &&
-                !timeoutError && !networkError && !dataError) {
-                prepared = true;
-                status = TransactionStatus.PREPARE;
-                currentValue = value;
-                out.println("OK");
-                System.out.println("Server " + port + ": Prepare SUCCESS");
-            } else {
-                prepared = false;
-                status = TransactionStatus.ROLLBACK;
-                out.println("NO");
-                System.out.println("Server " + port + ": Prepare FAILED");
-                if (randomValue >= successPerc) {
-                    System.out.println("Reason: Random check failed (" + randomValue + " >= " + successPerc + ")");
-                }
-            }
+            out.println(engine.prepare(txId, Map.of(Writes.VALUE_KEY, value), successPerc) == Vote.NO ? "NO" : "OK");
 
         } catch (Exception e) {
-            prepared = false;
-            status = TransactionStatus.ROLLBACK;
+            engine.rollback(txId);
             out.println("NO");
-            System.out.println("Server " + port + ": Error in PREPARE: " + e.getMessage());
+            logger.warn("Error in PREPARE port={} tx={}: {}", port, txId, e.getMessage());
         }
     }
 
-    private static void handleErrorCommand(String line, PrintWriter out) {
-        switch (line) {
-            case "ERROR1" -> {
-                timeoutError = true;
-                out.println("ERROR1_SET");
-            }
-            case "ERROR2" -> {
-                networkError = true;
-                out.println("ERROR2_SET");
-            }
-            case "ERROR3" -> {
-                dataError = true;
-                out.println("ERROR3_SET");
-            }
-            case "ERROR_CLEAR" -> {
-                timeoutError = false;
-                networkError = false;
-                dataError = false;
-                out.println("ERRORS_CLEARED");
+    // The batch is acked only when every decision in it is applied; a retried batch is applied again harmlessly
+    private static void handleDecideBatch(Message message, ParticipantEngine engine, SubCoordinator subCoordinator,
+                                          int port, PrintWriter out) {
+        String[][] entries = message.entries(0);
+        List<CompletableFuture<Boolean>> applied = new ArrayList<>(entries.length);
+        for (String[] entry : entries) {
+            long entryTxId = Long.parseLong(entry[0]);
+            boolean commit = "C".equals(entry[1]);
+            // COMMIT records of the batch are forced in parallel, so they share fsyncs
+            CompletableFuture<Boolean> local = commit
+                ? CompletableFuture.supplyAsync(() -> engine.commit(entryTxId), workers)
+                : CompletableFuture.supplyAsync(() -> {
+                    engine.rollback(entryTxId);
+                    return true;
+                }, workers);
+            // A sub-coordinator's ack also covers the children it relays the decision to
+            applied.add(local.thenCombine(subCoordinator.decide(entryTxId, commit), (done, relayed) -> done));
+        }
+        try {
+            if (applied.stream().allMatch(CompletableFuture::join)) {
+                out.println(Message.of(MessageType.ACK_BATCH, message.txId).encode());
             }
+        } catch (CompletionException e) {
+            logger.error("Could not apply decisions port={}: {}", port, e.getCause().getMessage());
         }
     }
 
-    private static void handleOtherCommands(String line, int port, PrintWriter out) {
-        if (line.equals("COMMIT")) {
-            if (prepared && !timeoutError && !networkError && !dataError) {
-                status = TransactionStatus.COMMIT;
-                System.out.println("Server on port " + port + " committed. Value: " + currentValue);
-            }
-        } else if (line.equals("ROLLBACK")) {
-            status = TransactionStatus.ROLLBACK;
-            prepared = false;
-            System.out.println("Server on port " + port + " rolled back.");
+    private static void handleErrorCommand(String line, ParticipantEngine engine, PrintWriter out) {
+        try {
+            out.println(engine.applyError(line));
+        } catch (IllegalArgumentException e) {
+            // Nieznana komenda błędu - brak odpowiedzi, jak w protokole V1
         }
     }
 
-    private static String buildStatusResponse() {
-        return String.format(
-            "STATUS:%s;ERR1=%s;ERR2=%s;ERR3=%s;VALUE=%s",
-            status.name(),
-            timeoutError,
-            networkError,
-            dataError,
-            currentValue == null ? "null" : currentValue
-        );
+    private static void handleOtherCommands(String line, long txId, ParticipantEngine engine) {
+        if (line.equals("COMMIT")) {
+            engine.commit(txId);
+        } else if (line.equals("ROLLBACK")) {
+            engine.rollback(txId);
+        }
     }
-}
\ No newline at end of file
+}
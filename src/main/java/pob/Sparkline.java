@@ -0,0 +1,115 @@
+package pob;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.util.Locale;
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Fixed-size ring buffer of the last samples of one series, drawn as a small
+ * line chart with the latest value next to it. Only touched on the EDT.
+ */
+final class Sparkline {
+
+    private final float[] samples;
+    private final String format;
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * @param format format of the latest value, e.g. {@code "%.0f tx/s"}
+     */
+    Sparkline(int capacity, String format) {
+        this.samples = new float[capacity];
+        this.format = format;
+    }
+
+    void add(float sample) {
+        samples[next] = sample;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+    }
+
+    float latest() {
+        return size == 0 ? 0 : samples[(next - 1 + samples.length) % samples.length];
+    }
+
+    // The i-th oldest retained sample
+    private float get(int i) {
+        return samples[(next - size + i + samples.length) % samples.length];
+    }
+
+    /**
+     * One component paints every sparkline cell of a table, so rendering
+     * allocates nothing per row. It also works as a standalone chart, see
+     * {@link #show(Sparkline)}.
+     */
+    static final class Renderer extends JComponent implements TableCellRenderer {
+
+        private static final int LABEL_WIDTH = 64;
+        private static final Color LINE_COLOR = new Color(40, 110, 200);
+
+        private Sparkline sparkline;
+        private boolean selected;
+        private Color selectionBackground;
+
+        Renderer show(Sparkline sparkline) {
+            this.sparkline = sparkline;
+            repaint();
+            return this;
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            this.sparkline = (Sparkline) value;
+            this.selected = isSelected;
+            this.selectionBackground = table.getSelectionBackground();
+            return this;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            if (selected) {
+                g.setColor(selectionBackground);
+                g.fillRect(0, 0, getWidth(), getHeight());
+            }
+            if (sparkline == null || sparkline.size == 0) {
+                return;
+            }
+            int chartWidth = Math.max(0, getWidth() - LABEL_WIDTH - 4);
+            int height = getHeight() - 4;
+            float max = 0;
+            for (int i = 0; i < sparkline.size; i++) {
+                max = Math.max(max, sparkline.get(i));
+            }
+
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(LINE_COLOR);
+            int capacity = sparkline.samples.length;
+            int prevX = -1;
+            int prevY = -1;
+            for (int i = 0; i < sparkline.size; i++) {
+                // Right-aligned, so a short history grows in from the right
+                int x = 2 + (int) ((long) (capacity - sparkline.size + i) * chartWidth / Math.max(1, capacity - 1));
+                int y = 2 + height - (max == 0 ? 0 : Math.round(sparkline.get(i) / max * height));
+                if (prevX >= 0) {
+                    g2.drawLine(prevX, prevY, x, y);
+                }
+                prevX = x;
+                prevY = y;
+            }
+
+            g2.setColor(getForeground());
+            String label = String.format(Locale.ROOT, sparkline.format, sparkline.latest());
+            int labelX = getWidth() - g2.getFontMetrics().stringWidth(label) - 2;
+            g2.drawString(label, labelX, (getHeight() + g2.getFontMetrics().getAscent()) / 2 - 1);
+        }
+    }
+}
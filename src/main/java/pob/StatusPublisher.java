@@ -0,0 +1,105 @@
+package pob;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes a participant's status to observers that sent SUBSCRIBE, instead of
+ * having them poll GET_STATUS. A subscriber first gets the full status, then
+ * only the fields that changed, as
+ * {@code V2:STATUS_EVENT:<subscriptionId>:status,COMMIT;value,5}.
+ * <p>
+ * Changes are coalesced: the first change after a flush schedules the next
+ * one {@value #FLUSH_DELAY_MS} ms later, so a busy participant sends at most
+ * one event per subscriber per interval, and nothing while there are no
+ * subscribers or nothing changed.
+ */
+class StatusPublisher {
+
+    private static final long FLUSH_DELAY_MS = 50;
+
+    private record Subscriber(long subscriptionId, PrintWriter out) {
+    }
+
+    private final ParticipantEngine engine;
+    private final ScheduledExecutorService scheduler;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Guarded by this
+    private Map<String, String> published = Map.of();
+
+    StatusPublisher(ParticipantEngine engine, ScheduledExecutorService scheduler) {
+        this.engine = engine;
+        this.scheduler = scheduler;
+        engine.setStatusListener(this::statusChanged);
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+
+    synchronized void subscribe(long subscriptionId, PrintWriter out) {
+        // Existing subscribers catch up first, so the snapshot below is what later deltas build on
+        flush();
+        Subscriber subscriber = new Subscriber(subscriptionId, out);
+        subscribers.add(subscriber);
+        send(subscriber, encode(published));
+    }
+
+    // Drops every subscription made over the given connection
+    void unsubscribe(PrintWriter out) {
+        subscribers.removeIf(subscriber -> subscriber.out == out);
+    }
+
+    private void statusChanged() {
+        if (!subscribers.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> {
+                flushScheduled.set(false);
+                flush();
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void flush() {
+        Map<String, String> current = engine.statusSnapshot();
+        Map<String, String> changed = new LinkedHashMap<>();
+        current.forEach((field, value) -> {
+            if (!value.equals(published.get(field))) {
+                changed.put(field, value);
+            }
+        });
+        published = current;
+        if (changed.isEmpty()) {
+            return;
+        }
+        String delta = encode(changed);
+        for (Subscriber subscriber : subscribers) {
+            send(subscriber, delta);
+        }
+    }
+
+    private void send(Subscriber subscriber, String fields) {
+        subscriber.out.println(Message.of(MessageType.STATUS_EVENT, subscriber.subscriptionId, fields).encode());
+        // PrintWriter swallows write errors; a broken connection just ends the subscription
+        if (subscriber.out.checkError()) {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    private static String encode(Map<String, String> fields) {
+        StringBuilder sb = new StringBuilder();
+        fields.forEach((field, value) -> {
+            if (!sb.isEmpty()) {
+                sb.append(Message.ENTRY_SEPARATOR);
+            }
+            sb.append(field).append(Message.FIELD_SEPARATOR).append(value);
+        });
+        return sb.toString();
+    }
+}
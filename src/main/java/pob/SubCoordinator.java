@@ -0,0 +1,215 @@
+package pob;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets a participant act as an intermediate coordinator in hierarchical 2PC
+ * (see {@link CommitTree}). A PREPARE carrying a subtree is sent on to the
+ * children while the participant votes locally, and the votes are combined
+ * into one for the whole subtree: NO if anything voted NO, failed or missed
+ * the deadline, YES if anything voted YES, READ_ONLY otherwise. Children get a
+ * shorter deadline than this node, so a slow leaf is reported as NO before the
+ * parent gives up on the whole subtree.
+ * <p>
+ * Decisions from the parent are applied locally and relayed to the children
+ * that voted YES through a {@link DecisionDelivery}; the parent's ack waits
+ * for the whole subtree. A subtree that aborts on its own rolls its children
+ * back right away, as the root coordinator does.
+ */
+class SubCoordinator {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubCoordinator.class);
+    private static final int CONNECTIONS_PER_CHILD = 2;
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+    private static final int HEALTH_CHECK_INTERVAL_MS = 1000;
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final int port;
+    private final ParticipantEngine engine;
+    private final RelayLog log;
+    private final Metrics metrics;
+    private final DecisionDelivery delivery;
+    private final ConcurrentHashMap<InetSocketAddress, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private record Relay(List<ConnectionPool> children, long preparedAtNanos) {
+    }
+
+    // Subtrees that voted YES, with the children the decision goes to
+    private final ConcurrentHashMap<Long, Relay> relays = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> relaying = new ConcurrentHashMap<>();
+    // Subtrees still voting, true once the parent rolled them back meanwhile
+    private final ConcurrentHashMap<Long, Boolean> stillVoting = new ConcurrentHashMap<>();
+
+    SubCoordinator(int port, ParticipantEngine engine, RelayLog log, Metrics metrics,
+                   ScheduledExecutorService scheduler) {
+        this.port = port;
+        this.engine = engine;
+        this.log = log;
+        this.metrics = metrics;
+        this.delivery = new DecisionDelivery(scheduler, MAX_BATCH_SIZE);
+        log.inDoubt().forEach((txId, children) -> {
+            List<ConnectionPool> targets = new ArrayList<>(children.size());
+            for (InetSocketAddress child : children) {
+                // Logged addresses are unresolved
+                targets.add(pool(new InetSocketAddress(child.getHostString(), child.getPort())));
+            }
+            relays.put(txId, new Relay(targets, System.nanoTime()));
+        });
+        if (!relays.isEmpty()) {
+            logger.info("Recovered port={} inDoubtSubtrees={}", port, relays.size());
+        }
+        scheduler.scheduleWithFixedDelay(() -> pools.values().forEach(ConnectionPool::healthCheck),
+                                         HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    Vote prepare(long txId, Map<Long, Integer> writes, int successPerc, int fanout, long timeoutMs,
+                 List<InetSocketAddress> descendants) {
+        stillVoting.put(txId, false);
+        try {
+            return vote(txId, writes, successPerc, fanout, timeoutMs, descendants);
+        } finally {
+            stillVoting.remove(txId);
+        }
+    }
+
+    private Vote vote(long txId, Map<Long, Integer> writes, int successPerc, int fanout, long timeoutMs,
+                      List<InetSocketAddress> descendants) {
+        String value = Writes.encode(writes);
+        long childTimeoutMs = timeoutMs * 3 / 4;
+        List<CommitTree.Subtree> subtrees = CommitTree.split(descendants, fanout);
+        List<ConnectionPool> children = new ArrayList<>(subtrees.size());
+        Queue<ConnectionPool> yes = new ConcurrentLinkedQueue<>();
+        CompletableFuture<String> voting = new CompletableFuture<>();
+        AtomicInteger outstandingVotes = new AtomicInteger(subtrees.size());
+        for (CommitTree.Subtree subtree : subtrees) {
+            ConnectionPool pool = pool(subtree.root());
+            children.add(pool);
+            long start = System.nanoTime();
+            pool.request(CommitTree.prepare(txId, value, successPerc, fanout, childTimeoutMs, subtree.descendants()))
+                .whenComplete((reply, error) -> {
+                    if (error != null) {
+                        pool.metrics().prepareFailures.increment();
+                        voting.complete(subtree.root() + " failed: " + error.getMessage());
+                        return;
+                    }
+                    Vote vote = Vote.fromMessage(reply);
+                    pool.metrics().prepareRoundTrip.record(System.nanoTime() - start);
+                    pool.metrics().vote(vote);
+                    if (vote == Vote.NO) {
+                        voting.complete(subtree.root() + " voted NO");
+                    } else {
+                        if (vote == Vote.YES) {
+                            yes.add(pool);
+                        }
+                        if (outstandingVotes.decrementAndGet() == 0) {
+                            voting.complete(null);
+                        }
+                    }
+                });
+        }
+
+        Vote local = engine.prepare(txId, writes, successPerc);
+        if (local == Vote.NO) {
+            voting.complete("local vote NO");
+        }
+        String abortReason = voting
+            .completeOnTimeout("subtree deadline of " + childTimeoutMs + " ms exceeded",
+                               childTimeoutMs, TimeUnit.MILLISECONDS)
+            .join();
+
+        if (abortReason == null && rolledBack(txId)) {
+            abortReason = "parent rolled back";
+        }
+        if (abortReason == null && !yes.isEmpty()) {
+            List<ConnectionPool> prepared = List.copyOf(yes);
+            try {
+                log.logPrepared(txId, prepared.stream().map(ConnectionPool::getAddress).toList());
+                relays.put(txId, new Relay(prepared, System.nanoTime()));
+            } catch (IOException e) {
+                abortReason = "could not log prepared subtree: " + e.getMessage();
+            }
+            // A rollback that came after the check above may have found no relay yet
+            if (abortReason == null && rolledBack(txId)) {
+                decide(txId, false);
+                return Vote.NO;
+            }
+        }
+        if (abortReason != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Subtree aborted port={} tx={} reason={}", port, txId, abortReason);
+            }
+            engine.rollback(txId);
+            delivery.deliver(txId, false, children);
+            return Vote.NO;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Subtree prepared port={} tx={} children={} yes={}", port, txId, children.size(), yes.size());
+        }
+        return local == Vote.YES || !yes.isEmpty() ? Vote.YES : Vote.READ_ONLY;
+    }
+
+    /**
+     * Relays the parent's decision to the children that voted YES. Completes
+     * once they have all acknowledged, at once if there is nothing to relay.
+     */
+    CompletableFuture<Void> decide(long txId, boolean commit) {
+        // Before looking for the relay, so a subtree still voting sees the rollback or is found here
+        if (!commit) {
+            stillVoting.replace(txId, false, true);
+        }
+        Relay relay = relays.get(txId);
+        if (relay == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // A decision the parent repeats while it is being relayed waits for the same delivery
+        return relaying.computeIfAbsent(txId, id -> delivery.deliver(id, commit, relay.children()).thenRun(() -> {
+            relays.remove(id);
+            relaying.remove(id);
+            log.logEnd(id);
+        }));
+    }
+
+    private boolean rolledBack(long txId) {
+        return Boolean.TRUE.equals(stillVoting.get(txId));
+    }
+
+    // Subtrees that voted YES before the given System.nanoTime() and have not been given the decision
+    Set<Long> inDoubt(long preparedBeforeNanos) {
+        Set<Long> inDoubt = new HashSet<>();
+        relays.forEach((txId, relay) -> {
+            if (relay.preparedAtNanos() - preparedBeforeNanos < 0) {
+                inDoubt.add(txId);
+            }
+        });
+        return inDoubt;
+    }
+
+    int inDoubtCount() {
+        return relays.size();
+    }
+
+    private ConnectionPool pool(InetSocketAddress child) {
+        return pools.computeIfAbsent(child, address -> new ConnectionPool(
+            address, CONNECTIONS_PER_CHILD, REQUEST_TIMEOUT_MS, CoordinatorMetrics.participant(metrics, address)));
+    }
+
+    void close() {
+        delivery.close(REQUEST_TIMEOUT_MS);
+        pools.values().forEach(ConnectionPool::close);
+    }
+}
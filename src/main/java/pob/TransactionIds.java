@@ -0,0 +1,73 @@
+package pob;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * 64-bit transaction ids: a random 32-bit owner above a 31-bit sequence, so
+ * ids of one owner increase in the order they are issued. A process draws a
+ * fresh owner at start and whenever the sequence runs out. A coordinator
+ * records every owner it issues ids under (see {@link DecisionLog}) and can
+ * tell its own ids from another coordinator's exactly, unless two of them
+ * drew the same owner, a chance of 1 in 2^32 per pair of owners. Ids of
+ * different owners are ordered, but not by age.
+ */
+public final class TransactionIds {
+
+    private static final int SEQUENCE_BITS = 31;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    // Told of every new owner before any id of it is issued
+    private static final List<LongConsumer> ownerListeners = new CopyOnWriteArrayList<>();
+    private static final AtomicLong nextId = new AtomicLong(randomOwner());
+
+    private TransactionIds() {
+    }
+
+    public static long next() {
+        while (true) {
+            long id = nextId.get();
+            if ((id & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                rotate(id);
+            } else if (nextId.compareAndSet(id, id + 1)) {
+                return id;
+            }
+        }
+    }
+
+    // The lowest id of the owner that issued txId, which stands for the owner
+    static long owner(long txId) {
+        return txId & ~SEQUENCE_MASK;
+    }
+
+    static long currentOwner() {
+        return owner(nextId.get());
+    }
+
+    static void addOwnerListener(LongConsumer listener) {
+        ownerListeners.add(listener);
+    }
+
+    static void removeOwnerListener(LongConsumer listener) {
+        ownerListeners.remove(listener);
+    }
+
+    // A listener that fails leaves the sequence exhausted, so the next call tries again
+    private static synchronized void rotate(long exhausted) {
+        if (nextId.get() != exhausted) {
+            return;
+        }
+        long owner = randomOwner();
+        for (LongConsumer listener : ownerListeners) {
+            listener.accept(owner);
+        }
+        nextId.set(owner);
+    }
+
+    // Never 0, so no id is 0 either
+    private static long randomOwner() {
+        return ThreadLocalRandom.current().nextLong(1, 1L << 32) << SEQUENCE_BITS;
+    }
+}
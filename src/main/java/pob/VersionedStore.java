@@ -0,0 +1,436 @@
+package pob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Participant key-value store: {@code long} keys to {@code int} values in
+ * parallel primitive arrays with open addressing and linear probing, so
+ * millions of keys are a handful of arrays for the GC rather than millions of
+ * objects.
+ * <p>
+ * A prepared transaction stages its writes as provisional versions next to the
+ * committed ones; a key holds at most one provisional version, so a second
+ * transaction writing it is refused until the first one is decided. COMMIT
+ * turns all of a transaction's provisional versions into committed ones under
+ * the write lock, so a reader sees either all of its writes or none. Writes
+ * that need no isolation can be committed alongside without being staged,
+ * as the plain last-writer-wins overwrites of {@link #commit(long, Iterable, Map)}. Reads
+ * only ever see committed values and never wait for undecided transactions;
+ * the lock is only held for the in-memory part of staging and committing.
+ * <p>
+ * Committed versions are numbered by a per-store commit sequence. A commit
+ * that replaces a value moves the old one into a version chain in a separate
+ * primitive arena, so snapshot reads as of an earlier sequence see the values
+ * committed at that point. Chains are trimmed on write to the versions that
+ * snapshots within the last {@code retainedVersions} commits can still see.
+ */
+final class VersionedStore {
+
+    // Returned by get() for a key without a committed value; outside the int range, so it is never a value
+    static final long ABSENT = Long.MIN_VALUE;
+
+    static final String RETENTION_PROPERTY = "pob.snapshotRetention";
+
+    // Reads as of this sequence see the latest committed values
+    static final long LATEST = Long.MAX_VALUE;
+
+    record Versioned(long key, long value, long version) {
+    }
+
+    // Values of a set of keys as of one commit sequence
+    record Snapshot(long asOf, List<Versioned> reads) {
+    }
+
+    // Every committed key with its latest value and version, for checkpoints
+    record Image(long[] keys, int[] values, long[] versions, long lastVersion) {
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.7f;
+    // versions[] marks: a free slot, and a key that only has a provisional version so far
+    private static final long FREE = 0;
+    private static final long UNCOMMITTED = -1;
+
+    private final StampedLock lock = new StampedLock();
+    private long[] keys;
+    private int[] values;
+    // Commit sequence of the committed value, or FREE / UNCOMMITTED
+    private long[] versions;
+    // Transaction holding the provisional version, 0 if none
+    private long[] pendingTx;
+    private int[] pendingValues;
+    // Newest superseded version of the key in the arena, 0 if none
+    private int[] history;
+    private int usedSlots;
+    private int committedKeys;
+    private long lastVersion;
+    // Snapshots before a restored image have no history
+    private long oldestSnapshot;
+
+    // Version chain arena, entry 0 unused so that 0 ends a chain; free entries are chained through chainNext
+    private int[] chainValues = new int[INITIAL_CAPACITY];
+    private long[] chainVersions = new long[INITIAL_CAPACITY];
+    private int[] chainNext = new int[INITIAL_CAPACITY];
+    private int arenaUsed = 1;
+    private int freeEntries;
+    private final long retainedVersions;
+
+    VersionedStore(long retainedVersions) {
+        this.retainedVersions = retainedVersions;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    static VersionedStore fromConfig() {
+        return new VersionedStore(Long.getLong(RETENTION_PROPERTY, 100_000));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        versions = new long[capacity];
+        pendingTx = new long[capacity];
+        pendingValues = new int[capacity];
+        history = new int[capacity];
+    }
+
+    /**
+     * Installs the writes as provisional versions of {@code txId}. Returns false,
+     * staging nothing, if another transaction already has a provisional version
+     * of one of the keys. Staging the same transaction again is harmless.
+     */
+    boolean stage(long txId, Map<Long, Integer> writes) {
+        long stamp = lock.writeLock();
+        try {
+            for (long key : writes.keySet()) {
+                int slot = find(key);
+                if (slot >= 0 && pendingTx[slot] != 0 && pendingTx[slot] != txId) {
+                    return false;
+                }
+            }
+            for (Map.Entry<Long, Integer> write : writes.entrySet()) {
+                int slot = insert(write.getKey());
+                pendingTx[slot] = txId;
+                pendingValues[slot] = write.getValue();
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Makes the transaction's provisional versions of these keys visible together; returns their version
+    long commit(long txId, Iterable<Long> writtenKeys) {
+        return commit(txId, writtenKeys, Map.of());
+    }
+
+    // As above, with unstaged overwrites made visible in the same version, whichever commit came before
+    long commit(long txId, Iterable<Long> writtenKeys, Map<Long, Integer> overwrites) {
+        long stamp = lock.writeLock();
+        try {
+            long version = ++lastVersion;
+            for (long key : writtenKeys) {
+                int slot = find(key);
+                if (slot >= 0 && pendingTx[slot] == txId) {
+                    install(slot, pendingValues[slot], version);
+                    pendingTx[slot] = 0;
+                }
+            }
+            for (Map.Entry<Long, Integer> overwrite : overwrites.entrySet()) {
+                install(insert(overwrite.getKey()), overwrite.getValue(), version);
+            }
+            return version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void install(int slot, int value, long version) {
+        if (versions[slot] == UNCOMMITTED) {
+            committedKeys++;
+        } else {
+            supersede(slot);
+        }
+        values[slot] = value;
+        versions[slot] = version;
+        trim(slot);
+    }
+
+    // A key the transaction staged without a committed value is removed again, so aborts do not fill the table
+    void discard(long txId, Iterable<Long> writtenKeys) {
+        long stamp = lock.writeLock();
+        try {
+            for (long key : writtenKeys) {
+                int slot = find(key);
+                if (slot >= 0 && pendingTx[slot] == txId) {
+                    if (versions[slot] == UNCOMMITTED) {
+                        remove(slot);
+                    } else {
+                        pendingTx[slot] = 0;
+                    }
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Latest committed value, or ABSENT; never waits for undecided transactions
+    long get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        long value = committedValue(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = committedValue(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Values of the keys as of commit sequence {@code asOf}, all from the same
+     * committed state; {@link #LATEST} or a sequence not reached yet reads the
+     * latest commit. A key without a value at that point reads as
+     * {@link #ABSENT} with version 0. Returns null if the snapshot is older
+     * than the retained history.
+     */
+    Snapshot read(List<Long> readKeys, long asOf) {
+        long stamp = lock.readLock();
+        try {
+            long snapshot = Math.min(asOf, lastVersion);
+            if (snapshot < Math.max(oldestSnapshot, lastVersion - retainedVersions)) {
+                return null;
+            }
+            List<Versioned> reads = new ArrayList<>(readKeys.size());
+            for (long key : readKeys) {
+                reads.add(read(key, snapshot));
+            }
+            return new Snapshot(snapshot, reads);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Versioned read(long key, long snapshot) {
+        int slot = find(key);
+        if (slot >= 0 && versions[slot] != UNCOMMITTED) {
+            if (versions[slot] <= snapshot) {
+                return new Versioned(key, values[slot], versions[slot]);
+            }
+            for (int entry = history[slot]; entry != 0; entry = chainNext[entry]) {
+                if (chainVersions[entry] <= snapshot) {
+                    return new Versioned(key, chainValues[entry], chainVersions[entry]);
+                }
+            }
+        }
+        return new Versioned(key, ABSENT, 0);
+    }
+
+    // Copies the committed keys; staging and commits wait for the copy, reads do not
+    Image image() {
+        long stamp = lock.readLock();
+        try {
+            long[] imageKeys = new long[committedKeys];
+            int[] imageValues = new int[committedKeys];
+            long[] imageVersions = new long[committedKeys];
+            int n = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (versions[slot] != FREE && versions[slot] != UNCOMMITTED) {
+                    imageKeys[n] = keys[slot];
+                    imageValues[n] = values[slot];
+                    imageVersions[n] = versions[slot];
+                    n++;
+                }
+            }
+            return new Image(imageKeys, imageValues, imageVersions, lastVersion);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Loads an image into an empty store; snapshot reads start at its last version
+    void restore(Image image) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < image.keys().length; i++) {
+                int slot = insert(image.keys()[i]);
+                values[slot] = image.values()[i];
+                versions[slot] = image.versions()[i];
+                committedKeys++;
+            }
+            lastVersion = image.lastVersion();
+            oldestSnapshot = lastVersion;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int committed = committedKeys;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                committed = committedKeys;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return committed;
+    }
+
+    // Reads the arrays once, so an optimistic reader racing a resize stays within one consistent table
+    private long committedValue(long key) {
+        long[] k = keys;
+        long[] v = versions;
+        int[] val = values;
+        int mask = k.length - 1;
+        if (v.length != k.length || val.length != k.length) {
+            return ABSENT;
+        }
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long version = v[slot];
+            if (version == FREE) {
+                return ABSENT;
+            }
+            if (k[slot] == key) {
+                return version == UNCOMMITTED ? ABSENT : val[slot];
+            }
+        }
+    }
+
+    // Moves the slot's committed value to the head of its version chain
+    private void supersede(int slot) {
+        int entry = freeEntries;
+        if (entry != 0) {
+            freeEntries = chainNext[entry];
+        } else {
+            if (arenaUsed == chainValues.length) {
+                chainValues = Arrays.copyOf(chainValues, arenaUsed * 2);
+                chainVersions = Arrays.copyOf(chainVersions, arenaUsed * 2);
+                chainNext = Arrays.copyOf(chainNext, arenaUsed * 2);
+            }
+            entry = arenaUsed++;
+        }
+        chainValues[entry] = values[slot];
+        chainVersions[entry] = versions[slot];
+        chainNext[entry] = history[slot];
+        history[slot] = entry;
+    }
+
+    // Frees the chain entries replaced before the oldest snapshot still served
+    private void trim(int slot) {
+        long horizon = lastVersion - retainedVersions;
+        long replacedAt = versions[slot];
+        int newer = 0;
+        int entry = history[slot];
+        while (entry != 0 && replacedAt > horizon) {
+            replacedAt = chainVersions[entry];
+            newer = entry;
+            entry = chainNext[entry];
+        }
+        if (newer == 0) {
+            history[slot] = 0;
+        } else {
+            chainNext[newer] = 0;
+        }
+        while (entry != 0) {
+            int older = chainNext[entry];
+            chainNext[entry] = freeEntries;
+            freeEntries = entry;
+            entry = older;
+        }
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (versions[slot] == FREE) {
+                return -1;
+            }
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private int insert(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (usedSlots + 1 > keys.length * LOAD_FACTOR) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        for (slot = hash(key) & mask; versions[slot] != FREE; slot = (slot + 1) & mask) {
+        }
+        keys[slot] = key;
+        versions[slot] = UNCOMMITTED;
+        usedSlots++;
+        return slot;
+    }
+
+    // Backward-shift deletion: later keys of the probe run move into the hole, so no lookup stops short at it
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; versions[next] != FREE; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // Movable unless its home lies after the hole, cyclically
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                versions[hole] = versions[next];
+                pendingTx[hole] = pendingTx[next];
+                pendingValues[hole] = pendingValues[next];
+                history[hole] = history[next];
+                hole = next;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = 0;
+        versions[hole] = FREE;
+        pendingTx[hole] = 0;
+        pendingValues[hole] = 0;
+        history[hole] = 0;
+        usedSlots--;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        long[] oldVersions = versions;
+        long[] oldPendingTx = pendingTx;
+        int[] oldPendingValues = pendingValues;
+        int[] oldHistory = history;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldVersions[i] == FREE) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (versions[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            versions[slot] = oldVersions[i];
+            pendingTx[slot] = oldPendingTx[i];
+            pendingValues[slot] = oldPendingValues[i];
+            history[slot] = oldHistory[i];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
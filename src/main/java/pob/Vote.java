@@ -0,0 +1,34 @@
+package pob;
+
+public enum Vote {
+    YES('Y', MessageType.VOTE_YES),
+    NO('N', MessageType.VOTE_NO),
+    // Uczestnik niczego nie zmienia - nie bierze udziału w drugiej fazie
+    READ_ONLY('R', MessageType.VOTE_READ_ONLY);
+
+    public final char code;
+    public final MessageType messageType;
+
+    Vote(char code, MessageType messageType) {
+        this.code = code;
+        this.messageType = messageType;
+    }
+
+    public static Vote fromCode(String code) {
+        for (Vote vote : values()) {
+            if (code.length() == 1 && vote.code == code.charAt(0)) {
+                return vote;
+            }
+        }
+        throw new IllegalArgumentException("Unknown vote code: " + code);
+    }
+
+    public static Vote fromMessage(Message message) {
+        for (Vote vote : values()) {
+            if (vote.messageType == message.type) {
+                return vote;
+            }
+        }
+        throw new IllegalArgumentException("Not a vote: " + message);
+    }
+}
@@ -0,0 +1,64 @@
+package pob;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Codecs for the keyed writes of a transaction. On the wire they take the
+ * place of the single value, as {@code <key>=<value>,...}; an empty string is
+ * a read-only round. The single value is a write to key {@value #VALUE_KEY},
+ * which keyed transactions may not use: participants keep it last-writer-wins
+ * rather than isolated, so concurrent single-value rounds do not conflict.
+ */
+final class Writes {
+
+    static final long VALUE_KEY = Long.MIN_VALUE;
+
+    private Writes() {
+    }
+
+    static Map<Long, Integer> parse(String encoded) {
+        if (encoded.isEmpty()) {
+            return Map.of();
+        }
+        Map<Long, Integer> writes = new LinkedHashMap<>();
+        for (String write : encoded.split(Message.FIELD_SEPARATOR)) {
+            int eq = write.indexOf('=');
+            writes.put(Long.parseLong(write.substring(0, eq)), Integer.parseInt(write.substring(eq + 1)));
+        }
+        return Collections.unmodifiableMap(writes);
+    }
+
+    static String encodeValue(int value) {
+        return VALUE_KEY + "=" + value;
+    }
+
+    static String encode(Map<Long, Integer> writes) {
+        StringBuilder sb = new StringBuilder();
+        writes.forEach((key, value) -> {
+            if (!sb.isEmpty()) {
+                sb.append(Message.FIELD_SEPARATOR);
+            }
+            sb.append(key).append('=').append(value);
+        });
+        return sb.toString();
+    }
+
+    // Log payload: [int count] then [long key][int value] per write
+    static byte[] toBytes(Map<Long, Integer> writes) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + writes.size() * 12).putInt(writes.size());
+        writes.forEach((key, value) -> buffer.putLong(key).putInt(value));
+        return buffer.array();
+    }
+
+    static Map<Long, Integer> fromBytes(ByteBuffer payload) {
+        int count = payload.getInt();
+        Map<Long, Integer> writes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            writes.put(payload.getLong(), payload.getInt());
+        }
+        return Collections.unmodifiableMap(writes);
+    }
+}